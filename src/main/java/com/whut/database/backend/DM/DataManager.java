@@ -5,9 +5,10 @@ import com.whut.database.backend.DM.logger.Logger;
 import com.whut.database.backend.DM.page.PageNormal;
 import com.whut.database.backend.DM.page.PageOne;
 import com.whut.database.backend.DM.pageCache.PageCache;
-import com.whut.database.backend.DM.pageCache.PageCacheImpl;
 import com.whut.database.backend.TM.TransactionManager;
 
+import java.util.function.LongSupplier;
+
 /*
     数据管理模块
  */
@@ -15,13 +16,26 @@ public interface DataManager {
 
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    void free(long uid) throws Exception; // 释放数据，不能回滚，槽在 horizon 越过释放时开启的事务之后才重用
+    void setHorizon(LongSupplier horizon); // 之前的事务都已经结束的边界，决定释放的槽什么时候可以重用
     void close();
+    void setInsertAffinity(boolean insertAffinity); // 线程独占插入页
+    void releaseInsertPage(); // 把当前线程的插入页归还到页面索引，线程不再插入（连接关闭）时调用
+    void checkpoint(); // 写回所有脏页并删除不再需要的日志
+    void flushLog(); // 已经写入的日志全部落盘，事务提交之前调用
+    void setCommitLogged(boolean commitLogged); // 提交和取消作为日志记录，xid文件由检查点落盘
+    void commit(long xid); // 提交事务：日志落盘之后标记为已提交
+    void abort(long xid); // 取消事务
 
     /*
         创建DM
      */
     static DataManager create(String path, long mem, TransactionManager tm){
-        PageCache pc = PageCache.create(path,mem);
+        return create(path, mem, tm, PageCache.MODE_HEAP);
+    }
+
+    static DataManager create(String path, long mem, TransactionManager tm, String cacheMode){
+        PageCache pc = PageCache.create(path, mem, cacheMode);
         Logger lg = Logger.create(path);
 
         DataManagerImpl dm = new DataManagerImpl(tm,pc,lg);
@@ -34,18 +48,41 @@ public interface DataManager {
         打开DM
      */
     static DataManager open(String path, long mem, TransactionManager tm){
-        PageCacheImpl pc = PageCache.open(path, mem);
+        return open(path, mem, tm, PageCache.MODE_HEAP);
+    }
+
+    static DataManager open(String path, long mem, TransactionManager tm, String cacheMode){
+        return open(path, mem, tm, cacheMode, 1);
+    }
+
+    static DataManager open(String path, long mem, TransactionManager tm, String cacheMode, int redoThreads){
+        return open(path, mem, tm, cacheMode, PageCache.POLICY_CLOCK, redoThreads);
+    }
+
+    /*
+        policy：页缓存的替换策略
+        redoThreads：崩溃恢复时重做日志的线程数
+     */
+    static DataManager open(String path, long mem, TransactionManager tm, String cacheMode, String policy, int redoThreads){
+        PageCache pc = PageCache.open(path, mem, cacheMode, policy);
         Logger lg = Logger.open(path);
 
         DataManagerImpl dm = new DataManagerImpl(tm,pc,lg);
         // 检查数据库是否正常关闭
+        boolean recovered = false;
         if(!dm.loadCheckPageOne()){
-            Recover.recover(tm,lg,pc);
+            // 恢复时根据日志修改的事务状态由恢复之后的检查点统一落盘
+            tm.setDeferSync(true);
+            Recover.recover(tm,lg,pc,PageOne.getCheckpoint(dm.pageOne),redoThreads);
+            tm.setDeferSync(false);
+            recovered = true;
         }
 
-        dm.fillPageIndex(); // 初始化页索引
+        dm.fillPageIndex(recovered); // 初始化页索引
         PageOne.setVcOpen(dm.pageOne); // 写入校验的随机字节
         dm.pc.flushPage(dm.pageOne);
+        // 恢复的结果写回数据库文件，再次崩溃时不需要重复恢复
+        if (recovered) dm.checkpoint();
 
         return dm;
     }
@@ -3,32 +3,86 @@ package com.whut.database.backend.DM;
 import com.whut.database.backend.DM.dataItem.DataItem;
 import com.whut.database.backend.DM.dataItem.DataItemImpl;
 import com.whut.database.backend.DM.logger.Logger;
+import com.whut.database.backend.DM.logger.LoggerImpl;
 import com.whut.database.backend.DM.page.Page;
+import com.whut.database.backend.DM.page.PageFsm;
 import com.whut.database.backend.DM.page.PageNormal;
 import com.whut.database.backend.DM.page.PageOne;
+import com.whut.database.backend.DM.page.PageSlotted;
 import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.DM.pageIndex.FreeSpaceMap;
 import com.whut.database.backend.DM.pageIndex.PageIndex;
 import com.whut.database.backend.DM.pageIndex.PageInfo;
 import com.whut.database.backend.TM.TransactionManager;
+import com.whut.database.backend.TM.TransactionManagerImpl;
 import com.whut.database.backend.common.AbstractCache;
 import com.whut.database.backend.utils.Panic;
 import com.whut.database.backend.utils.Types;
 import com.whut.database.common.Error;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+    数据管理模块的实现
+
+    检查点：日志增长超过 CHECKPOINT_INTERVAL 后由后台线程做检查点，关闭和崩溃恢复之后也会做一次
+    写日志并修改页的操作持有检查点锁的读锁，检查点持有写锁，检查点时所有日志对应的修改都已经在页中
+    后台检查点不写回所有脏页，只写回上一次检查点之前变脏的页，其余的脏页记录在检查点日志的脏页表中，
+    恢复起点不早于上一次检查点（除非有更早的活跃事务），恢复时只重做脏页表中的页在检查点之前的日志
+
+    日志只写入日志缓冲区，修改页之后把日志的LSN记录到页上，页缓存写回页之前先让日志落盘到页的LSN
+    普通事务的日志在提交之前由 flushLog 落盘；超级事务的操作（索引）没有提交，日志随之后的提交或页的写回落盘，
+    日志按顺序落盘，崩溃后重做的总是日志的一个前缀，索引和记录保持一致；不经过页缓存写入的文件（如booter）需要先调用 flushLog
+
+    提交记录在日志中（commitLogged）时，提交只写入一条提交日志并让日志落盘到这条日志，
+    并发提交的事务由日志的批量落盘共享一次fsync；xid文件中的状态不立即落盘，检查点删除日志之前落盘
+ */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    private static final int FILL_PREFETCH = 32; // 初始化页索引时每次预读的页数
+    private static final long CHECKPOINT_INTERVAL = 2 * LoggerImpl.SEGMENT_SIZE; // 日志增长超过该大小后做检查点
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pageIndex;
+    FreeSpaceMap freeSpaceMap;
     Page pageOne;
 
+    boolean insertAffinity; // 每个线程固定向自己的插入页插入
+    volatile boolean commitLogged; // 提交和取消记录在日志中
+    ThreadLocal<PageInfo> insertPage; // 线程当前的插入页，不在页面索引中
+    Map<Integer, Long> freedXid; // 页中还在等待重用的槽：最后一次释放时下一个开启的事务
+    volatile LongSupplier horizon; // 之前的事务都已经结束的边界，由版本管理设置
+
+    ReadWriteLock checkpointLock; // 检查点锁
+    Map<Long, Long> firstLsn; // 事务的第一条日志，检查点时移除已经结束的事务
+    volatile long lastCheckpoint; // 上一次检查点日志的LSN
+    Thread checkpointer; // 后台检查点线程
+    volatile boolean closed;
+
     public DataManagerImpl(TransactionManager tm, PageCache pc, Logger logger) {
         super(0);
         this.tm = tm;
         this.pc = pc;
         this.logger = logger;
         this.pageIndex = new PageIndex();
+        this.insertPage = new ThreadLocal<>();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.freedXid = new ConcurrentHashMap<>();
+        this.horizon = () -> Long.MAX_VALUE;
+        this.lastCheckpoint = logger.nextLsn();
+        pc.setLogFlusher(logger::flush);
+        this.checkpointer = new Thread(this::checkpointLoop, "checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
     }
 
     /*
@@ -44,11 +98,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             Panic.panic(e);
         }
 
+        freeSpaceMap = FreeSpaceMap.create(pc, pageOne);
+        PageOne.setVersion(pageOne, PageOne.VERSION);
         pc.flushPage(pageOne);
     }
 
     /*
         检查数据库是否正常关闭
+        旧版本的文件升级到当前版本：之后新建的普通页为分槽页
      */
     boolean loadCheckPageOne(){
         try {
@@ -56,16 +113,33 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }catch (Exception e){
             Panic.panic(e);
         }
+        int version = PageOne.getVersion(pageOne);
+        if (version > PageOne.VERSION) Panic.panic(Error.UnsupportedVersionException);
+        if (version < PageOne.VERSION) PageOne.setVersion(pageOne, PageOne.VERSION);
         return PageOne.checkVc(pageOne);
     }
 
     /*
-        初始化页索引
+        初始化页索引：有空闲空间表时只读取空闲空间表页
+        没有空闲空间表（旧版本的数据库文件）或者崩溃恢复之后，扫描所有页并重建空闲空间表
      */
-    void fillPageIndex(){
+    void fillPageIndex(boolean recovered){
+        if (!recovered){
+            freeSpaceMap = FreeSpaceMap.open(pc, pageOne);
+            if (!freeSpaceMap.isEmpty()){
+                freeSpaceMap.load(pageIndex);
+                return;
+            }
+        }
+        freeSpaceMap = FreeSpaceMap.create(pc, pageOne);
+
         int pageNumber = pc.getPageNumber();
+        int[] freeSpaces = new int[pageNumber + 1];
         // 第一页不加入页面索引
         for(int i = 2; i <= pageNumber; i++){
+            // 一次读取后面的一批页
+            if ((i - 2) % FILL_PREFETCH == 0) pc.prefetch(i, FILL_PREFETCH);
+
             Page pg = null;
             try{
                 pg = pc.getPage(i); // 引用计数+1
@@ -73,10 +147,29 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 Panic.panic(e);
             }
 
-            // 将该页加入到页面索引
-            pageIndex.add(pg.getPageNumber(), PageNormal.getFreeSpace(pg));
+            // 旧的空闲空间表页在重建时复用，不加入页面索引
+            if (PageFsm.isFsmPage(pg)){
+                freeSpaceMap.reuse(i);
+            }else{
+                if (PageNormal.isEmpty(pg)){
+                    // 新页在写入磁盘之前崩溃，重新初始化
+                    pg.setDirty(true);
+                    System.arraycopy(PageNormal.initRaw(), 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+                }else if (PageSlotted.isSlotted(pg)){
+                    // 启动时没有语句持有之前释放的uid，也没有其他线程访问，直接整理
+                    PageSlotted.release(pg);
+                    if (PageSlotted.getFreeSpaceAfterCompact(pg) > PageSlotted.getFreeSpace(pg)) PageSlotted.compact(pg);
+                }
+                freeSpaces[i] = PageNormal.getFreeSpace(pg);
+                // 将该页加入到页面索引
+                pageIndex.add(pg.getPageNumber(), freeSpaces[i]);
+            }
             pg.release(); // 释放缓存，引用计数-1
         }
+
+        for(int i = 2; i <= pageNumber; i++){
+            if (freeSpaces[i] > 0) freeSpaceMap.update(i, freeSpaces[i]);
+        }
     }
 
 
@@ -86,6 +179,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public DataItem read(long uid) throws Exception {
         DataItemImpl di = (DataItemImpl) super.get(uid);
+        if (di == null){ // 数据已经被释放
+            super.release(uid);
+            return null;
+        }
         if(!di.isValid()){
             di.release();
             return null;
@@ -102,45 +199,228 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         // 数据过大
         if (raw.length > PageNormal.MAX_FREE_SPACE) throw Error.DataTooLargeException;
 
+        checkpointLock.readLock().lock();
+        try {
+            return internInsert(xid, raw);
+        }finally {
+            checkpointLock.readLock().unlock();
+            checkpointIfNeeded();
+        }
+    }
+
+    private long internInsert(long xid, byte[] raw) throws Exception {
         PageInfo pi = null;
-        for(int i = 0; i < 5; i++){
+        if (insertAffinity){
+            // 当前插入页放不下时归还到页面索引
+            pi = insertPage.get();
+            insertPage.remove();
+            if (pi != null && pi.freeSpace < raw.length){
+                pageIndex.add(pi.pgno, pi.freeSpace);
+                pi = null;
+            }
+        }
+        for(int i = 0; pi == null && i < 5; i++){
             pi = pageIndex.select(raw.length);
             if (pi != null){ // 获取到了能够存放数据的缓存页
                 break;
             }else{
                 int newPgno = pc.newPage(PageNormal.initRaw()); // 增加新的缓存页
                 pageIndex.add(newPgno,PageNormal.MAX_FREE_SPACE); // 将新的缓存页加入页面索引
+                freeSpaceMap.update(newPgno, PageNormal.MAX_FREE_SPACE);
             }
         }
 
         if (pi == null) throw Error.DatabaseBusyException;
 
         Page pg = null;
-        int freeSpace = 0;
+        int freeSpace = pi.freeSpace;
         try{
             pg = pc.getPage(pi.pgno); // 获取数据页
             byte[] log = Recover.createInsertLog(xid, pg, raw);
-            logger.writeLog(log); // 写入日志文件
+            long lsn = logger.writeLog(log); // 写入日志
             short offset = PageNormal.insert(pg, raw); // 向缓存页插入数据
-            pg.release(); // 释放缓存
+            PageNormal.setLsn(pg, lsn);
+            logged(xid, lsn);
 
             return Types.addressToUid(pi.pgno,offset);
         }finally {
-            // 将写好的数据页重新加入到页面缓存中
+            // 释放之前读取空闲空间，释放后页帧可能被其他页复用
             if (pg != null){
-                pageIndex.add(pi.pgno,PageNormal.getFreeSpace(pg));
-            }else {
+                freeSpace = PageNormal.getFreeSpace(pg);
+                pg.release(); // 释放缓存
+            }
+            // 将写好的数据页重新加入到页面缓存中，或者作为线程的插入页
+            if (insertAffinity){
+                insertPage.set(new PageInfo(pi.pgno, freeSpace));
+            }else{
                 pageIndex.add(pi.pgno,freeSpace);
             }
+            freeSpaceMap.update(pi.pgno, freeSpace);
+        }
+    }
+
+    /*
+        开启后每个线程（服务器中即每个连接）持有一个插入页，连续插入时不经过页面索引
+        插入页不在页面索引中，不会被整理，线程不再插入时需要调用 releaseInsertPage 归还
+     */
+    @Override
+    public void setInsertAffinity(boolean insertAffinity) {
+        this.insertAffinity = insertAffinity;
+    }
+
+    /*
+        归还当前线程的插入页，并整理该页：插入页被占用期间释放的空间在这里回收
+     */
+    @Override
+    public void releaseInsertPage() {
+        PageInfo pi = insertPage.get();
+        if (pi == null) return;
+        insertPage.remove();
+
+        checkpointLock.readLock().lock();
+        try {
+            pageIndex.add(pi.pgno, pi.freeSpace);
+            compact(pi.pgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /*
+        检查点：写回所有脏页，关闭和崩溃恢复之后使用
+     */
+    @Override
+    public void checkpoint() {
+        checkpoint(true);
+    }
+
+    /*
+        检查点：写回脏页，写入带脏页表的检查点日志，再把检查点日志的LSN记录到第一页
+        sharp为false时只写回上一次检查点之前变脏的页，剩下的脏页和它们的 recLsn 记录在脏页表中
+        恢复起点是检查点、剩下的脏页和仍然活跃的事务的第一条日志中最早的一个，之前的日志段被删除
+        第一页落盘之前崩溃时仍然使用上一次的检查点，所以最后才删除日志段
+     */
+    private void checkpoint(boolean sharp) {
+        long redoLsn;
+        checkpointLock.writeLock().lock();
+        try {
+            redoLsn = logger.nextLsn();
+            Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+            while (it.hasNext()){
+                Map.Entry<Long, Long> entry = it.next();
+                if (!tm.isActive(entry.getKey())) it.remove();
+                else redoLsn = Math.min(redoLsn, entry.getValue());
+            }
+            // 已经结束的事务的状态落盘，之后它们的提交日志可以被删除
+            tm.sync();
+
+            Map<Integer, Long> dirtyPages = pc.flushBefore(sharp ? Long.MAX_VALUE : lastCheckpoint);
+            for (long recLsn : dirtyPages.values()) {
+                redoLsn = Math.min(redoLsn, recLsn);
+            }
+            long lsn = logger.writeLog(Recover.checkpointLog(TransactionManagerImpl.SUPER_XID, redoLsn, pc.getPageNumber(), dirtyPages));
+            logger.flush(lsn);
+            PageOne.setCheckpoint(pageOne, lsn);
+            pc.flushPage(pageOne);
+            lastCheckpoint = lsn;
+        }finally {
+            checkpointLock.writeLock().unlock();
         }
+        logger.removeBefore(redoLsn);
+    }
+
+    /*
+        记录事务的第一条日志，需要持有检查点锁的读锁
+     */
+    private void logged(long xid, long lsn){
+        if (xid != TransactionManagerImpl.SUPER_XID) firstLsn.putIfAbsent(xid, lsn);
+    }
+
+    /*
+        已经写入的日志全部落盘，事务提交之前调用
+     */
+    @Override
+    public void flushLog() {
+        logger.flush(logger.nextLsn() - 1);
+    }
+
+    @Override
+    public void setCommitLogged(boolean commitLogged) {
+        this.commitLogged = commitLogged;
+        tm.setDeferSync(commitLogged);
     }
 
     /*
-        关闭数据库
+        提交事务：提交记录在日志中时，日志落盘到提交日志就是提交成功，之后再修改内存和xid文件中的状态
+        否则先让已经写入的日志全部落盘，再把提交状态写入xid文件并落盘
+     */
+    @Override
+    public void commit(long xid) {
+        if (commitLogged){
+            logger.flush(logStatus(xid, Recover.commitLog(xid)));
+        }else{
+            flushLog();
+        }
+        tm.commit(xid);
+    }
+
+    /*
+        取消事务：取消日志不需要落盘，丢失时事务在xid文件中仍然是取消状态
+     */
+    @Override
+    public void abort(long xid) {
+        if (commitLogged) logStatus(xid, Recover.abortLog(xid));
+        tm.abort(xid);
+    }
+
+    /*
+        写入提交或者取消日志，也作为事务的日志记录：
+        检查点时事务还没有结束的话，恢复起点不晚于这条日志，检查点之后才修改的状态不会随日志段被删除
+     */
+    private long logStatus(long xid, byte[] log){
+        checkpointLock.readLock().lock();
+        try {
+            long lsn = logger.writeLog(log);
+            logged(xid, lsn);
+            return lsn;
+        }finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /*
+        日志增长超过间隔时唤醒检查点线程
+     */
+    private void checkpointIfNeeded(){
+        if (logger.nextLsn() - lastCheckpoint >= CHECKPOINT_INTERVAL) LockSupport.unpark(checkpointer);
+    }
+
+    /*
+        后台检查点线程
+     */
+    private void checkpointLoop(){
+        while (!closed){
+            LockSupport.park(this);
+            if (!closed && logger.nextLsn() - lastCheckpoint >= CHECKPOINT_INTERVAL) checkpoint(false);
+        }
+    }
+
+    /*
+        关闭数据库：做一次检查点，下一次打开时只需要之后的日志
      */
     @Override
     public void close() {
+        closed = true;
+        LockSupport.unpark(checkpointer);
+        try {
+            checkpointer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         super.close();
+        checkpoint();
         logger.close();
 
         PageOne.setVcClose(pageOne);
@@ -149,16 +429,20 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     /*
-        获取缓存
+        获取缓存，数据已经被释放时返回null
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>= 32;
-        int pgNo = (int)(uid & ((1L << 32) - 1));
+        short pos = (short)(uid & ((1L << 16) - 1));
+        int pgNo = (int)((uid >>> 32) & ((1L << 32) - 1));
         Page pg = pc.getPage(pgNo);
 
-        return DataItem.parseDataItem(pg,offset,this);
+        short offset = PageNormal.getOffset(pg, pos);
+        if (offset == 0){
+            pg.release();
+            return null;
+        }
+        return DataItem.parseDataItem(pg,offset,uid,this);
     }
 
     /*
@@ -166,15 +450,113 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected void releaseForCache(DataItem di) {
-        di.page().release();
+        if (di != null) di.page().release();
+    }
+
+    /*
+        没有版本管理时调用者自己保证释放的uid不会再被使用，槽在整理页之后立即重用
+     */
+    @Override
+    public void setHorizon(LongSupplier horizon) {
+        this.horizon = horizon;
+    }
+
+    /*
+        释放数据：先写日志，再释放数据所在的槽，然后尝试整理该页
+        释放不能回滚，调用者需要保证索引中已经没有对该uid的引用；之前开启的事务中的语句可能还持有该uid，
+        所以记录下一个开启的事务，horizon 越过它之后该页等待的槽才可以重用，uid只在 horizon 之后才会指向其他数据
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        short pos = (short)(uid & ((1L << 16) - 1));
+        int pgNo = (int)((uid >>> 32) & ((1L << 32) - 1));
+
+        checkpointLock.readLock().lock();
+        try {
+            Page pg = pc.getPage(pgNo);
+            try {
+                long lsn = logger.writeLog(Recover.freeLog(TransactionManagerImpl.SUPER_XID, uid));
+                // 之前释放的槽已经可以重用时先放开，不会因为不断有新的释放而一直等待
+                freedXid.compute(pgNo, (k, xid) -> {
+                    if (PageSlotted.isSlotted(pg) && reusable(xid)) PageSlotted.release(pg);
+                    PageNormal.free(pg, pos);
+                    return tm.nextXid();
+                });
+                PageNormal.setLsn(pg, lsn);
+            }finally {
+                pg.release();
+            }
+            compact(pgNo);
+        }finally {
+            checkpointLock.readLock().unlock();
+            checkpointIfNeeded();
+        }
+    }
+
+    /*
+        整理页：回收被释放的数据占用的空间，并更新页面索引和空闲空间表
+        页正在被插入（不在页面索引中）或者还被其他线程引用时不整理，返回false
+        整理不记录日志，需要持有检查点锁的读锁，避免检查点写回整理了一半的页
+     */
+    boolean compact(int pgno) throws Exception {
+        PageInfo pi = pageIndex.remove(pgno);
+        if (pi == null) return false;
+
+        Page pg = null;
+        int freeSpace = pi.freeSpace;
+        try {
+            pg = pc.getPage(pgno);
+            if (!PageSlotted.isSlotted(pg) || !pc.tryOccupy(pg)) return false;
+            try {
+                // 独占期间不会有线程释放该页的数据
+                Long xid = freedXid.get(pgno);
+                if (xid != null && reusable(xid)){
+                    freedXid.remove(pgno);
+                    PageSlotted.release(pg);
+                }
+                PageSlotted.compact(pg);
+            }finally {
+                pc.unoccupy(pg);
+            }
+            return true;
+        }finally {
+            if (pg != null){
+                freeSpace = PageNormal.getFreeSpace(pg);
+                pg.release();
+            }
+            pageIndex.add(pgno, freeSpace);
+            freeSpaceMap.update(pgno, freeSpace);
+        }
+    }
+
+    /*
+        释放时记录的事务之前开启的事务都已经结束，它们的语句不会再使用该页释放的uid
+     */
+    private boolean reusable(Long xid){
+        return xid == null || xid <= horizon.getAsLong();
+    }
+
+    /*
+        DataItem 修改期间（before 到 after 或 unBefore）持有检查点锁的读锁，
+        修改直接作用在页上，日志在修改完成后才写入，检查点不能写回修改了一半的页
+     */
+    public void beforeUpdate(){
+        checkpointLock.readLock().lock();
+    }
+
+    public void afterUpdate(){
+        checkpointLock.readLock().unlock();
+        checkpointIfNeeded();
     }
 
     /*
-        为xid生成修改日志
+        为xid生成修改日志，调用者持有检查点锁的读锁
      */
     public void logDataItem(long xid, DataItem di){
         byte[] log = Recover.updateLog(xid, di);
-        logger.writeLog(log);
+        long lsn = logger.writeLog(log);
+        PageNormal.setLsn(di.page(), lsn);
+        logged(xid, lsn);
     }
 
     /*
@@ -2,9 +2,11 @@ package com.whut.database.backend.DM;
 
 import com.google.common.primitives.Bytes;
 import com.whut.database.backend.DM.dataItem.DataItem;
+import com.whut.database.backend.DM.logger.LogReader;
 import com.whut.database.backend.DM.logger.Logger;
 import com.whut.database.backend.DM.page.Page;
 import com.whut.database.backend.DM.page.PageNormal;
+import com.whut.database.backend.DM.page.PageSlotted;
 import com.whut.database.backend.DM.pageCache.PageCache;
 import com.whut.database.backend.TM.TransactionManager;
 import com.whut.database.backend.common.SubArray;
@@ -12,15 +14,31 @@ import com.whut.database.backend.utils.Panic;
 import com.whut.database.backend.utils.Parser;
 import com.whut.database.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /*
     文件恢复策略
+    第一页记录最近一次检查点日志的LSN，从检查点日志中的恢复起点开始读取日志
+    检查点之前的日志只重做检查点时脏页表中的页，并且只重做该页变脏之后的日志，其他的修改在检查点时已经在数据库文件中
+    分槽页的页头记录了页中已经包含的最后一条日志的LSN，重做时跳过LSN不大于它的日志，追加页没有记录，总是重做
+
+    崩溃时还在进行的事务在xid文件中已经是取消状态（见 TransactionManagerImpl 的预分配），
+    它们的日志和已经结束的事务一样重做，修改由版本管理的可见性隐藏，与运行时回滚相同；
+    只有旧版本的xid文件中处于活跃状态的事务需要回滚
+    提交和取消日志用来重建xid文件中没有落盘的事务状态
  */
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_SLOT_INSERT = 2; // 向分槽页插入，Offset为槽号
+    private static final byte LOG_TYPE_FREE = 3;
+    private static final byte LOG_TYPE_CHECKPOINT = 4;
+    private static final byte LOG_TYPE_COMMIT = 5;
+    private static final byte LOG_TYPE_ABORT = 6;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -35,6 +53,14 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID + 8; // 修改事务的id
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8; // 修改的数据
 
+    private static final int OF_FREE_UID = OF_XID + 8; // 释放的数据
+
+    private static final int OF_CHECKPOINT_LSN = OF_XID + 8; // 恢复起点
+    private static final int OF_CHECKPOINT_PAGES = OF_CHECKPOINT_LSN + 8; // 检查点时的页数
+    private static final int OF_CHECKPOINT_COUNT = OF_CHECKPOINT_PAGES + 4; // 脏页表的页数
+    private static final int OF_CHECKPOINT_DIRTY = OF_CHECKPOINT_COUNT + 4; // 脏页表
+    private static final int CHECKPOINT_DIRTY_SIZE = 4 + 8; // [Pgno] [RecLSN]
+
     /*
         [LogType] [XID] [Pgno] [Offset] [Raw]
      */
@@ -42,133 +68,271 @@ public class Recover {
         long xid; // 事务id
         int pgno; // 页号
         short offset; // 页内偏移量
-        byte[] raw; // 插入数据
+        SubArray raw; // 插入数据
     }
 
     /*
         [LogType] [XID] [UID] [OldRaw] [NewRaw]
+        UID中的页内位置：分槽页为槽号，追加页为偏移量
      */
     static class UpdateLog{
         long xid; // 事务id
         int pgno; // 页号
         short offset; // 页内偏移量
-        byte[] oldRaw; // 老数据
-        byte[] newRaw; // 新数据
+        SubArray oldRaw; // 老数据
+        SubArray newRaw; // 新数据
+    }
+
+    /*
+        [LogType] [XID] [UID]
+        释放的数据不能回滚，只由超级事务执行
+     */
+    static class FreeLog{
+        long xid; // 事务id
+        int pgno; // 页号
+        short pos; // 页内位置
+    }
+
+    /*
+        [LogType] [XID] [RedoLSN] [PageNumber] [Count] [Pgno RecLSN]*
+        检查点之前的日志可能已经被删除，截断数据库文件时至少保留检查点时的页数
+        脏页表记录检查点时还没有写回的页和该页变脏之后的第一条日志，旧的检查点日志没有脏页表
+     */
+    static class CheckpointLog{
+        long xid; // 事务id
+        long redoLsn; // 恢复起点
+        int pageNumber; // 检查点时数据库文件的页数
+        Map<Integer, Long> dirtyPages; // 脏页表：页号 -> recLsn
     }
 
     /*
-        恢复文件
+        恢复文件，lsn为检查点日志的LSN
      */
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc){
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long lsn){
+        recover(tm, lg, pc, lsn, 1);
+    }
+
+    /*
+        恢复文件，lsn为检查点日志的LSN，redoThreads为重做日志的线程数
+        只顺序读取一遍日志：重做已经结束的事务的操作，同时收集活跃事务的日志，读完后倒序回滚
+        日志直接在读取缓冲区中解析，只有需要回滚或者交给重做线程的日志才会被拷贝
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long lsn, int redoThreads){
         System.out.println("Recovering");
 
-        lg.rewind();
+        // lsn 处不是检查点日志时（旧版本的文件记录的是恢复起点，或者还没有检查点）从 lsn 开始，之前的修改都已经写回
+        CheckpointLog checkpoint = readCheckpointLog(lg, lsn);
+        long checkpointLsn = lsn;
+        Map<Integer, Long> dirtyPages = checkpoint.dirtyPages;
 
+        // 恢复期间事务的状态不会改变，缓存起来避免每条日志都读取XID文件
+        Map<Long, Boolean> active = new HashMap<>();
+        // 活跃事务的日志，按写入顺序
+        Map<Long, List<byte[]>> logCache = new HashMap<>();
         int maxPgno = 0;
+        RedoWorkers workers = redoThreads > 1 ? new RedoWorkers(pc, redoThreads) : null;
+
+        LogReader reader = lg.reader(checkpoint.redoLsn);
         while (true){
-            byte[] log = lg.next();
+            SubArray log = reader.next();
             if (log == null) break;
+
             int pgNo = 0;
+            boolean redo = false;
             if(isInsertlog(log)){
                 InsertLog il = parseInsertLog(log);
                 pgNo = il.pgno;
+                if(active.computeIfAbsent(il.xid, tm::isActive)) cache(logCache, il.xid, log);
+                else redo = true;
             }else if(isUpdateLog(log)){
                 UpdateLog ul = parseUpdateLog(log);
                 pgNo = ul.pgno;
+                if(active.computeIfAbsent(ul.xid, tm::isActive)) cache(logCache, ul.xid, log);
+                else redo = true;
+            }else if(isFreeLog(log)){
+                pgNo = parseFreeLog(log).pgno;
+                redo = true;
+            }else if(isCheckpointLog(log)){
+                pgNo = parseCheckpointLog(log).pageNumber;
+            }else if(isCommitLog(log)){
+                tm.commit(parseXid(log));
+            }else if(isAbortLog(log)){
+                tm.abort(parseXid(log));
             }else{
                 Panic.panic(Error.BadLogFileException);
             }
 
+            // 检查点之前的日志：页不在脏页表中，或者日志在页变脏之前，说明修改已经写回
+            if (redo && reader.lsn() < checkpointLsn){
+                Long recLsn = dirtyPages.get(pgNo);
+                redo = recLsn != null && reader.lsn() >= recLsn;
+            }
+            if (redo){
+                if (workers == null) redoLog(pc, log, reader.lsn());
+                else workers.dispatch(pgNo, log, reader.lsn());
+            }
             if (pgNo > maxPgno) maxPgno = pgNo;
         }
+        // 回滚之前等待所有日志重做完成
+        if (workers != null) workers.finish();
+        System.out.println("Redo Transactions Over.");
+
+        undoTranscations(tm, pc, logCache);
+        System.out.println("Undo Transactions Over.");
 
         // 只有第一页特殊页
         if (maxPgno == 0) maxPgno = 1;
 
+        // 日志之后的页没有被恢复过程访问，直接截断
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
-        System.out.println("Undo Transactions Over.");
-
         System.out.println("Recovery Over.");
 
     }
 
     /*
-        重做日志操作
+        读取 lsn 处的检查点日志，不是检查点日志时以 lsn 为恢复起点，脏页表为空
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while (true){
-            byte[] log = lg.next();
-            if (log == null) return;
+    private static CheckpointLog readCheckpointLog(Logger lg, long lsn){
+        LogReader reader = lg.reader(lsn);
+        SubArray log = reader.next();
+        if (log != null && reader.lsn() == lsn && isCheckpointLog(log)) return parseCheckpointLog(log);
+
+        CheckpointLog cl = new CheckpointLog();
+        cl.xid = TransactionManager.SUPER_XID;
+        cl.redoLsn = lsn;
+        cl.dirtyPages = new HashMap<>();
+        return cl;
+    }
 
-            if(isInsertlog(log)){
-                InsertLog il = parseInsertLog(log);
-                long xid = il.xid;
-                if(!tm.isActive(xid)){
-                    doInsertLog(pc, log, REDO);
-                }
-            }else if (isUpdateLog(log)){
-                UpdateLog ul = parseUpdateLog(log);
-                long xid = ul.xid;
-                if(!tm.isActive(xid)){
-                    doUpdateLog(pc, log, REDO);
-                }
-            }else{
-                Panic.panic(Error.BadLogFileException);
-            }
+    /*
+        重做一条插入、修改或者释放日志，lsn为日志的LSN
+     */
+    private static void redoLog(PageCache pc, SubArray log, long lsn){
+        if (isInsertlog(log)){
+            doInsertLog(pc, log, parseInsertLog(log), REDO, lsn);
+        }else if (isUpdateLog(log)){
+            doUpdateLog(pc, parseUpdateLog(log), REDO, lsn);
+        }else{
+            doFreeLog(pc, parseFreeLog(log), lsn);
         }
     }
 
     /*
-        回滚日志操作
+        并行重做：读取日志的线程按页号把日志分给重做线程，同一页的日志总是由同一个线程按写入顺序重做
+        每条日志只修改一页，不同页的日志互不影响
      */
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
+    private static class RedoWorkers {
+
+        private static final int BATCH_SIZE = 256; // 每次交给重做线程的日志条数
+        private static final int QUEUE_SIZE = 16; // 每个重做线程最多积压的批数，限制读取线程领先的距离
+
+        private PageCache pc;
+        private List<BlockingQueue<Batch>> queues;
+        private List<Batch> batches; // 每个重做线程正在积累的一批日志
+        private Thread[] threads;
+
+        /*
+            一批日志和它们的LSN
+         */
+        private static class Batch {
+            byte[][] logs = new byte[BATCH_SIZE][];
+            long[] lsns = new long[BATCH_SIZE];
+            int size;
+        }
 
-        // 将属于某个事务的操作放入同一个集合中
-        while (true){
-            byte[] log = lg.next();
-            if (log == null) break;
+        RedoWorkers(PageCache pc, int n) {
+            this.pc = pc;
+            this.queues = new ArrayList<>(n);
+            this.batches = new ArrayList<>(n);
+            this.threads = new Thread[n];
+            for(int i = 0; i < n; i++){
+                BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+                queues.add(queue);
+                batches.add(new Batch());
+                threads[i] = new Thread(() -> work(queue), "redo-" + i);
+                threads[i].start();
+            }
+        }
 
-            if(isInsertlog(log)){
-                InsertLog il = parseInsertLog(log);
-                long xid = il.xid;
-                if(tm.isActive(xid)){
-                   if(!logCache.containsKey(xid)){
-                       logCache.put(xid,new ArrayList<>());
-                   }
-                   logCache.get(xid).add(log);
+        /*
+            把日志交给负责该页的重做线程，读取缓冲区会被覆盖，需要拷贝
+         */
+        void dispatch(int pgno, SubArray log, long lsn){
+            int i = (pgno & Integer.MAX_VALUE) % threads.length;
+            Batch batch = batches.get(i);
+            batch.logs[batch.size] = Arrays.copyOfRange(log.raw, log.start, log.end);
+            batch.lsns[batch.size] = lsn;
+            batch.size ++;
+            if (batch.size >= BATCH_SIZE){
+                put(queues.get(i), batch);
+                batches.set(i, new Batch());
+            }
+        }
+
+        /*
+            交出剩余的日志，等待所有重做线程结束，空的一批表示没有更多日志
+         */
+        void finish(){
+            for(int i = 0; i < threads.length; i++){
+                if (batches.get(i).size > 0) put(queues.get(i), batches.get(i));
+                put(queues.get(i), new Batch());
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
                 }
-            }else if (isUpdateLog(log)){
-                UpdateLog ul = parseUpdateLog(log);
-                long xid = ul.xid;
-                if(tm.isActive(xid)){
-                    if(!logCache.containsKey(xid)){
-                        logCache.put(xid,new ArrayList<>());
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        private void work(BlockingQueue<Batch> queue){
+            try {
+                while (true){
+                    Batch batch = queue.take();
+                    if (batch.size == 0) return;
+                    for(int i = 0; i < batch.size; i++){
+                        byte[] raw = batch.logs[i];
+                        redoLog(pc, new SubArray(raw, 0, raw.length), batch.lsns[i]);
                     }
-                    logCache.get(xid).add(log);
                 }
-            }else{
-                Panic.panic(Error.BadLogFileException);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
             }
         }
 
+        private static void put(BlockingQueue<Batch> queue, Batch batch){
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /*
+        拷贝一条活跃事务的日志，读取缓冲区会被下一次读取覆盖
+     */
+    private static void cache(Map<Long, List<byte[]>> logCache, long xid, SubArray log){
+        logCache.computeIfAbsent(xid, k -> new ArrayList<>()).add(Arrays.copyOfRange(log.raw, log.start, log.end));
+    }
+
+    /*
+        回滚日志操作
+     */
+    private static void undoTranscations(TransactionManager tm, PageCache pc, Map<Long, List<byte[]>> logCache) {
         for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
             List<byte[]> logs = entry.getValue();
             // 倒叙执行回滚日志
             for(int i = logs.size()-1; i >= 0; i--){
-                byte[] log = logs.get(i);
+                byte[] raw = logs.get(i);
+                SubArray log = new SubArray(raw, 0, raw.length);
                 if (isInsertlog(log)){
-                    doInsertLog(pc,log,UNDO);
+                    doInsertLog(pc, log, parseInsertLog(log), UNDO, 0);
                 }else if (isUpdateLog(log)){
-                    doUpdateLog(pc,log,UNDO);
+                    doUpdateLog(pc, parseUpdateLog(log), UNDO, 0);
                 }else {
                     Panic.panic(Error.BadLogFileException);
                 }
@@ -180,10 +344,9 @@ public class Recover {
     }
 
     /*
-        执行插入语句
+        执行插入语句，lsn为日志的LSN，只在重做时使用
      */
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLog il = parseInsertLog(log);
+    private static void doInsertLog(PageCache pc, SubArray log, InsertLog il, int flag, long lsn) {
         Page pg = null;
 
         try {
@@ -192,21 +355,28 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            if (flag == UNDO){ // 回滚阶段
-                DataItem.setInvalid(il.raw);
+            // 页中已经包含这条日志的修改
+            if (flag == REDO && PageNormal.getLsn(pg) >= lsn) return;
+            if (isSlotInsertLog(log)){
+                // 分槽页回滚插入时直接释放该槽
+                if (flag == UNDO) PageSlotted.recoverFree(pg, il.offset);
+                else PageSlotted.recoverInsert(pg, il.raw, il.offset);
+            }else{
+                if (flag == UNDO){ // 回滚阶段，回滚的日志已经被拷贝，可以直接修改
+                    DataItem.setInvalid(il.raw.raw, il.raw.start);
+                }
+                PageNormal.recoverInsert(pg,il.raw,il.offset);
             }
-            PageNormal.recoverInsert(pg,il.raw,il.offset);
+            if (flag == REDO) PageNormal.setLsn(pg, lsn);
         }finally {
             pg.release();
         }
     }
 
     /*
-        执行修改语句
+        执行修改语句，lsn为日志的LSN，只在重做时使用
      */
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-
-        UpdateLog ul = parseUpdateLog(log);
+    private static void doUpdateLog(PageCache pc, UpdateLog ul, int flag, long lsn) {
         Page pg = null;
 
         try {
@@ -216,10 +386,17 @@ public class Recover {
         }
 
         try {
+            // 页中已经包含这条日志的修改
+            if (flag == REDO && PageNormal.getLsn(pg) >= lsn) return;
+            // 数据已经被释放时不需要恢复
+            short offset = PageNormal.getOffset(pg, ul.offset);
+            if (offset == 0) return;
+
             if (flag == REDO){ // 重做阶段
-                PageNormal.recoverUpdate(pg,ul.newRaw,ul.offset);
+                PageNormal.recoverUpdate(pg,ul.newRaw,offset);
+                PageNormal.setLsn(pg, lsn);
             }else if (flag == UNDO){ // 回滚阶段
-                PageNormal.recoverUpdate(pg,ul.oldRaw,ul.offset);
+                PageNormal.recoverUpdate(pg,ul.oldRaw,offset);
             }else{
                 Panic.panic(Error.BadLogFileException);
             }
@@ -231,48 +408,167 @@ public class Recover {
 
 
     /*
-        创建插入日志
+        执行释放语句，lsn为日志的LSN
      */
-    private static InsertLog parseInsertLog(byte[] log) {
+    private static void doFreeLog(PageCache pc, FreeLog fl, long lsn) {
+        Page pg = null;
+
+        try {
+            pg = pc.getPage(fl.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+
+        try {
+            // 页中已经包含这条日志的修改
+            if (PageNormal.getLsn(pg) >= lsn) return;
+            if (PageSlotted.isSlotted(pg) || PageNormal.isEmpty(pg)){
+                PageSlotted.recoverFree(pg, fl.pos);
+            }else{
+                PageNormal.free(pg, fl.pos);
+            }
+            PageNormal.setLsn(pg, lsn);
+        }finally {
+            pg.release();
+        }
+    }
+
+    /*
+        解析插入日志，数据指向日志所在的数组
+     */
+    private static InsertLog parseInsertLog(SubArray log) {
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
         InsertLog il = new InsertLog();
-        il.xid = Parser.parseLong(Arrays.copyOfRange(log,OF_XID,OF_INSERT_PGNO));
-        il.pgno = Parser.parseInt(Arrays.copyOfRange(log,OF_INSERT_PGNO,OF_INSERT_OFFSET));
-        il.offset = Parser.parseShort(Arrays.copyOfRange(log,OF_INSERT_OFFSET,OF_INSERT_RAW));
-        il.raw = Arrays.copyOfRange(log,OF_INSERT_RAW,log.length);
+        il.xid = buf.getLong(log.start + OF_XID);
+        il.pgno = buf.getInt(log.start + OF_INSERT_PGNO);
+        il.offset = buf.getShort(log.start + OF_INSERT_OFFSET);
+        il.raw = new SubArray(log.raw, log.start + OF_INSERT_RAW, log.end);
 
         return il;
     }
 
     /*
-        创建修改日志
+        解析修改日志，新老数据指向日志所在的数组
      */
-    private static UpdateLog parseUpdateLog(byte[] log) {
+    private static UpdateLog parseUpdateLog(SubArray log) {
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
         UpdateLog ul = new UpdateLog();
-        ul.xid = Parser.parseLong(Arrays.copyOfRange(log,OF_XID,OF_UPDATE_UID));
+        ul.xid = buf.getLong(log.start + OF_XID);
 
-        long uid =  Parser.parseLong(Arrays.copyOfRange(log,OF_UPDATE_UID,OF_UPDATE_RAW));
+        long uid = buf.getLong(log.start + OF_UPDATE_UID);
         ul.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         ul.pgno = (int)(uid & ((1L << 32) - 1));
 
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        ul.oldRaw = Arrays.copyOfRange(log,OF_UPDATE_RAW,OF_UPDATE_RAW + length);
-        ul.newRaw = Arrays.copyOfRange(log,OF_UPDATE_RAW+length, log.length);
+        int start = log.start + OF_UPDATE_RAW;
+        int length = (log.end - start) / 2;
+        ul.oldRaw = new SubArray(log.raw, start, start + length);
+        ul.newRaw = new SubArray(log.raw, start + length, log.end);
 
         return ul;
     }
 
     /*
-        创建插入日志
+        解析释放日志
+     */
+    private static FreeLog parseFreeLog(SubArray log) {
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
+        FreeLog fl = new FreeLog();
+        fl.xid = buf.getLong(log.start + OF_XID);
+
+        long uid = buf.getLong(log.start + OF_FREE_UID);
+        fl.pos = (short)(uid & ((1L << 16) - 1));
+        uid >>>= 32;
+        fl.pgno = (int)(uid & ((1L << 32) - 1));
+
+        return fl;
+    }
+
+    /*
+        解析日志的事务id
+     */
+    private static long parseXid(SubArray log) {
+        return ByteBuffer.wrap(log.raw).getLong(log.start + OF_XID);
+    }
+
+    /*
+        解析检查点日志
+     */
+    private static CheckpointLog parseCheckpointLog(SubArray log) {
+        ByteBuffer buf = ByteBuffer.wrap(log.raw);
+        CheckpointLog cl = new CheckpointLog();
+        cl.xid = buf.getLong(log.start + OF_XID);
+        cl.redoLsn = buf.getLong(log.start + OF_CHECKPOINT_LSN);
+        cl.pageNumber = buf.getInt(log.start + OF_CHECKPOINT_PAGES);
+        cl.dirtyPages = new HashMap<>();
+        // 旧的检查点日志没有脏页表
+        if (log.end - log.start > OF_CHECKPOINT_COUNT){
+            int count = buf.getInt(log.start + OF_CHECKPOINT_COUNT);
+            for(int i = 0; i < count; i++){
+                int pos = log.start + OF_CHECKPOINT_DIRTY + i * CHECKPOINT_DIRTY_SIZE;
+                cl.dirtyPages.put(buf.getInt(pos), buf.getLong(pos + 4));
+            }
+        }
+        return cl;
+    }
+
+    /*
+        创建插入日志：分槽页记录插入的槽号，追加页记录插入的偏移量
      */
     public static byte[] createInsertLog(long xid, Page pg, byte[] raw){
-        byte[] logType = new byte[]{LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgNo = Parser.int2Byte(pg.getPageNumber());
+        if (PageSlotted.isSlotted(pg)){
+            byte[] logType = new byte[]{LOG_TYPE_SLOT_INSERT};
+            byte[] slot = Parser.short2Byte(PageSlotted.getNextSlot(pg));
+            return Bytes.concat(logType,xidRaw,pgNo,slot,raw);
+        }
+        byte[] logType = new byte[]{LOG_TYPE_INSERT};
         byte[] offset = Parser.short2Byte(PageNormal.getFSO(pg));
         return Bytes.concat(logType,xidRaw,pgNo,offset,raw);
     }
 
+    /*
+        创建释放日志
+     */
+    public static byte[] freeLog(long xid, long uid){
+        byte[] logType = new byte[]{LOG_TYPE_FREE};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] uidRaw = Parser.long2Byte(uid);
+        return Bytes.concat(logType,xidRaw,uidRaw);
+    }
+
+    /*
+        创建检查点日志，dirtyPages为检查点时还没有写回的页和它们的 recLsn
+     */
+    public static byte[] checkpointLog(long xid, long redoLsn, int pageNumber, Map<Integer, Long> dirtyPages){
+        ByteBuffer buf = ByteBuffer.allocate(OF_CHECKPOINT_DIRTY + dirtyPages.size() * CHECKPOINT_DIRTY_SIZE);
+        buf.put(LOG_TYPE_CHECKPOINT);
+        buf.putLong(xid);
+        buf.putLong(redoLsn);
+        buf.putInt(pageNumber);
+        buf.putInt(dirtyPages.size());
+        for (Map.Entry<Integer, Long> entry : dirtyPages.entrySet()) {
+            buf.putInt(entry.getKey());
+            buf.putLong(entry.getValue());
+        }
+        return buf.array();
+    }
+
+    /*
+        创建提交日志：[LogType] [XID]，只在提交记录在日志中时写入
+     */
+    public static byte[] commitLog(long xid){
+        return Bytes.concat(new byte[]{LOG_TYPE_COMMIT}, Parser.long2Byte(xid));
+    }
+
+    /*
+        创建取消日志：[LogType] [XID]
+     */
+    public static byte[] abortLog(long xid){
+        return Bytes.concat(new byte[]{LOG_TYPE_ABORT}, Parser.long2Byte(xid));
+    }
+
     /*
         创建修改日志
      */
@@ -286,12 +582,33 @@ public class Recover {
         return Bytes.concat(logType,xidRaw,uidRaw,oldRaw,newRaw);
     }
 
-    private static boolean isInsertlog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static boolean isInsertlog(SubArray log) {
+        byte type = log.raw[log.start];
+        return type == LOG_TYPE_INSERT || type == LOG_TYPE_SLOT_INSERT;
+    }
+
+    private static boolean isSlotInsertLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_SLOT_INSERT;
+    }
+
+    private static boolean isFreeLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_FREE;
+    }
+
+    private static boolean isCheckpointLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_CHECKPOINT;
+    }
+
+    private static boolean isCommitLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_COMMIT;
+    }
+
+    private static boolean isAbortLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_ABORT;
     }
 
-    private static boolean isUpdateLog(byte[] log) {
-        return log[0] == LOG_TYPE_UPDATE;
+    private static boolean isUpdateLog(SubArray log) {
+        return log.raw[log.start] == LOG_TYPE_UPDATE;
     }
 
 }
@@ -47,18 +47,24 @@ public interface DataItem {
         将页面数据转化为DataItem
      */
     static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm){
+        return parseDataItem(pg, offset, Types.addressToUid(pg.getPageNumber(),offset), dm);
+    }
+
+    /*
+        分槽页中数据的偏移量和uid中的槽号不同
+     */
+    static DataItem parseDataItem(Page pg, short offset, long uid, DataManagerImpl dm){
         byte[] raw = pg.getData();
         short size = Parser.parseShort(Arrays.copyOfRange(raw,offset + OF_SIZE,offset + OF_DATA));
         short length = (short)(size + OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(),offset);
         return new DataItemImpl(new SubArray(raw,offset,offset+length),new byte[length],dm,uid,pg);
     }
 
     /*
         设置有效性
      */
-    static void setInvalid(byte[] raw){
-        raw[OF_VALID] = (byte)1;
+    static void setInvalid(byte[] raw, int start){
+        raw[start + OF_VALID] = (byte)1;
     }
 
 }
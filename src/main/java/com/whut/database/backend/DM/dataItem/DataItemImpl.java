@@ -59,6 +59,7 @@ public class DataItemImpl implements DataItem {
      */
     @Override
     public void before() {
+        dm.beforeUpdate();
         wLock.lock();
         pg.setDirty(true);
         System.arraycopy(raw.raw,raw.start,oldRaw,0,oldRaw.length);
@@ -70,6 +71,8 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw,0,raw.raw,raw.start,oldRaw.length);
+        wLock.unlock();
+        dm.afterUpdate();
     }
 
     /*
@@ -79,6 +82,7 @@ public class DataItemImpl implements DataItem {
     public void after(long xid) {
         dm.logDataItem(xid,this);
         wLock.unlock();
+        dm.afterUpdate();
     }
 
     /*
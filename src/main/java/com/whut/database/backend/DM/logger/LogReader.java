@@ -0,0 +1,123 @@
+package com.whut.database.backend.DM.logger;
+
+import com.whut.database.backend.common.SubArray;
+import com.whut.database.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/*
+    顺序读取日志：每次从段文件中读取一大块到缓冲区，直接在缓冲区中解析和校验日志，不再逐条读取和拷贝
+    next 返回的数据指向缓冲区，只在下一次调用 next 之前有效，需要保留时由调用者拷贝
+
+    一个段读完后继续读下一个段；遇到不完整或者校验失败的日志就停止，不再读取之后的段
+ */
+public class LogReader {
+
+    private static final int BUFFER_SIZE = 4 << 20; // 每次读取的大小
+
+    private List<LoggerImpl.Segment> segments;
+    private int reading; // 当前读取的段
+    private long position; // 下一条日志在段内的位置
+
+    private ByteBuffer buf; // 缓冲区中是段内 [bufStart, bufStart + buf.limit()) 的数据
+    private long bufStart;
+
+    private long lsn; // 上一次返回的日志的LSN
+    private int xCheckSum; // 已经读取的v1日志的校验和
+
+    LogReader(List<LoggerImpl.Segment> segments, int reading, long position) {
+        this.segments = segments;
+        this.reading = reading;
+        this.position = position;
+        this.buf = ByteBuffer.allocate(0); // 第一次读取时再分配
+    }
+
+    /*
+        读取下一条日志的数据，没有更多日志时返回null
+     */
+    public SubArray next(){
+        while (true){
+            LoggerImpl.Segment seg = segments.get(reading);
+            SubArray data = internNext(seg);
+            if (data != null) return data;
+            // 当前段中有坏掉的日志，或者已经是最后一个段
+            if (position < seg.size || reading + 1 >= segments.size()) return null;
+            reading ++;
+            position = segments.get(reading).headerSize;
+            buf.limit(0);
+        }
+    }
+
+    /*
+        上一次 next 返回的日志的LSN
+     */
+    public long lsn(){
+        return lsn;
+    }
+
+    int getReading(){
+        return reading;
+    }
+
+    long getPosition(){
+        return position;
+    }
+
+    int getXCheckSum(){
+        return xCheckSum;
+    }
+
+    /*
+        解析当前段中的下一条日志
+     */
+    private SubArray internNext(LoggerImpl.Segment seg){
+        int ofData = seg.ofData;
+        if (position + ofData >= seg.size || !fill(seg, ofData)) return null;
+
+        int size = buf.getInt((int)(position - bufStart));
+        if (size < 0 || position + ofData + size > seg.size || !fill(seg, ofData + size)) return null;
+
+        // 缓冲区可能被重新填充
+        int p = (int)(position - bufStart);
+        byte[] raw = buf.array();
+        int checkSum = buf.getInt(p + LoggerImpl.OF_CHECKSUM);
+        if (seg.version == LoggerImpl.VERSION_1){
+            if (LoggerImpl.calCheckSum(0, raw, p + ofData, size) != checkSum) return null;
+            xCheckSum = LoggerImpl.calCheckSum(xCheckSum, raw, p, ofData + size);
+        }else{
+            // LSN不等于所在的位置说明是之前残留的数据
+            long recordLsn = buf.getLong(p + LoggerImpl.OF_LSN);
+            if (recordLsn != seg.base + position || LoggerImpl.checksum(recordLsn, raw, p + ofData, size) != checkSum) return null;
+        }
+
+        lsn = seg.base + position;
+        position += ofData + size;
+        return new SubArray(raw, p + ofData, p + ofData + size);
+    }
+
+    /*
+        保证缓冲区中有从 position 开始的 length 个字节，文件中没有这么多数据时返回false
+     */
+    private boolean fill(LoggerImpl.Segment seg, int length){
+        if (position >= bufStart && position + length <= bufStart + buf.limit()) return true;
+        if (position + length > seg.size) return false;
+
+        if (buf.capacity() < BUFFER_SIZE || buf.capacity() < length) buf = ByteBuffer.allocate(Math.max(BUFFER_SIZE, length));
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), seg.size - position));
+        bufStart = position;
+        try {
+            // 读满缓冲区，减少之后的读取次数
+            while (buf.hasRemaining()){
+                if (seg.fc.read(buf, bufStart + buf.position()) < 0) break;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        buf.flip();
+        return buf.limit() >= length;
+    }
+
+}
@@ -1,7 +1,6 @@
 package com.whut.database.backend.DM.logger;
 
 import com.whut.database.backend.utils.Panic;
-import com.whut.database.backend.utils.Parser;
 import com.whut.database.common.Error;
 
 import java.io.File;
@@ -13,6 +12,7 @@ import java.nio.channels.FileChannel;
 
 /*
     日志文件模块
+    LSN：日志的位置，按写入顺序递增
  */
 public interface Logger {
 
@@ -20,7 +20,13 @@ public interface Logger {
 
     void init();
 
-    void writeLog(byte[] data);
+    long writeLog(byte[] data); // 把日志追加到日志缓冲区，不等待落盘，返回日志的LSN
+
+    void flush(long lsn); // 等待 lsn 处（含）之前的日志落盘
+
+    long nextLsn(); // 下一条日志的LSN
+
+    void removeBefore(long lsn); // 删除只包含 lsn 之前日志的段
 
     void truncate(long x) throws Exception;
 
@@ -28,6 +34,10 @@ public interface Logger {
 
     void rewind();
 
+    void rewind(long lsn); // 从 lsn 处的日志开始读取
+
+    LogReader reader(long lsn); // 从 lsn 处的日志开始顺序读取
+
     void close();
 
     /*
@@ -37,7 +47,7 @@ public interface Logger {
         File file = new File(path + LOG_SUFFIX);
         try {
             // 日志文件已经存在
-            if (!file.createNewFile()) Panic.panic(Error.FileExistsException);
+            if (LoggerImpl.listSegments(path).length > 0 || !file.createNewFile()) Panic.panic(Error.FileExistsException);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -55,37 +65,31 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
+        ByteBuffer buf = ByteBuffer.wrap(LoggerImpl.header());
         try {
             fc.position(0);
             fc.write(buf);
             fc.force(false);
+            fc.close();
+            raf.close();
         } catch (IOException e) {
             Panic.panic(e);
         }
 
-        return new LoggerImpl(raf,fc,0);
+        return new LoggerImpl(path,file);
     }
 
     /*
-        打开日志文件
+        打开日志文件：读取所有的段
      */
     static Logger open(String path){
-        File file = new File(path + LOG_SUFFIX);
-        if(!file.exists()) Panic.panic(Error.FileNotExistsException);
-        if(!file.canRead() || !file.canWrite()) Panic.panic(Error.FileCannotRWException);
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-
-        try{
-            raf = new RandomAccessFile(file,"rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+        File[] files = LoggerImpl.listSegments(path);
+        if(files.length == 0) Panic.panic(Error.FileNotExistsException);
+        for (File file : files) {
+            if(!file.canRead() || !file.canWrite()) Panic.panic(Error.FileCannotRWException);
         }
 
-        Logger logger =  new LoggerImpl(raf,fc);
+        Logger logger =  new LoggerImpl(path,files);
         logger.init();
 
         return logger;
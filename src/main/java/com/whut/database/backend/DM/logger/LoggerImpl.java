@@ -1,62 +1,210 @@
 package com.whut.database.backend.DM.logger;
 
-import com.google.common.primitives.Bytes;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.whut.database.backend.common.SubArray;
 import com.whut.database.backend.utils.Panic;
 import com.whut.database.backend.utils.Parser;
 import com.whut.database.common.Error;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /*
     日志文件读写
 
-    日志文件标准格式为：
-        [XChecksum][Log1][Log2][Log3]...[LogN][BadTail]
-        XChecksum是校验和，BadTail是在数据库崩溃时，没有来得及写完的日志数据
+    日志按顺序写入多个段文件，第一个段为 path.log，之后的段为 path.log.<base>，
+    base为段的起始LSN（16位十六进制）：段内偏移量为 n 处的日志，LSN为 base+n
+    当前段写满 SEGMENT_SIZE 后新建下一个段；检查点之后，只包含检查点之前日志的段可以被删除
+
+    v2（新建的段）：
+        [Magic][Version][Log1][Log2][Log3]...[LogN][BadTail]
+        文件头写入后不再修改，追加日志只是顺序写
+        日志格式：[Size][Checksum][LSN][Data]
+        Size是数据长度，Checksum是LSN和数据的CRC32C，LSN是日志的位置
+        打开时从头检查每条日志，遇到第一条不完整、校验和错误或者LSN不对的日志就认为是BadTail
 
-    日志格式：
-        [Size][Checksum][Data]
+    v1（旧的日志文件，只会是第一个段，仍然可以打开和追加，下一次新建段时改为v2）：
+        [XChecksum][Log1][Log2][Log3]...[LogN][BadTail]
+        XChecksum是所有日志的校验和，每次追加都要重写，BadTail是在数据库崩溃时，没有来得及写完的日志数据
+        日志格式：[Size][Checksum][Data]
         Size是数据长度 Checksum是校验和
+
+    写日志只是把日志追加到内存中的日志缓冲区，需要落盘时调用 flush：
+    提交事务之前落盘事务的日志，页缓存写回页之前落盘到页的LSN（先写日志）
+    组提交：没有线程在写盘时，由等待落盘的线程之一作为leader把缓冲区中的整批日志写入文件并fsync，
+    写盘期间新追加的日志进入下一批，一次fsync让整批日志的线程同时返回
+    缓冲区中的日志超过 FLUSH_THRESHOLD 时，由追加日志的线程顺便写盘
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331; // 用于计算校验和
+    private static final int SEED = 13331; // 用于计算v1的校验和
+    private static final HashFunction CRC32C = Hashing.crc32c();
+
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+
+    public static final long SEGMENT_SIZE = 16L << 20; // 每个段的大小
 
     /*
-        前4个字节记录数据长度，后四个字节记录校验和，然后是数据
+        v2文件头：4个字节的魔数，4个字节的版本号
+     */
+    private static final int MAGIC = 0x4D594C47; // "MYLG"
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    public static final int HEADER_SIZE = OF_VERSION + 4;
+    private static final int V1_HEADER_SIZE = 4;
+
+    /*
+        前4个字节记录数据长度，后四个字节记录校验和，v2接着8个字节记录LSN，然后是数据
      */
     private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_LSN = OF_CHECKSUM + 4;
+    private static final int V1_OF_DATA = OF_CHECKSUM + 4;
+    private static final int V2_OF_DATA = OF_LSN + 8;
+
+    private static final int BUFFER_SIZE = 1 << 16; // 日志缓冲区的初始大小
+    private static final int FLUSH_THRESHOLD = 1 << 20; // 缓冲区中的日志超过该大小时写盘
+
+    /*
+        日志段
+     */
+    static class Segment {
+        long base; // 段的起始LSN
+        File file;
+        RandomAccessFile raf;
+        FileChannel fc;
+        int version; // 段的格式版本
+        int headerSize; // 文件头的长度，也是第一条日志的位置
+        int ofData; // 日志中数据的偏移量
+        long size; // 段内有效日志的末尾位置
+        int xCheckSum; // v1段的校验和
+
+        Segment(long base, File file, int version) {
+            this.base = base;
+            this.file = file;
+            setVersion(version);
+            try {
+                this.raf = new RandomAccessFile(file, "rw");
+                this.fc = raf.getChannel();
+            } catch (FileNotFoundException e) {
+                Panic.panic(e);
+            }
+        }
+
+        void setVersion(int version){
+            this.version = version;
+            this.headerSize = version == VERSION_1 ? V1_HEADER_SIZE : HEADER_SIZE;
+            this.ofData = version == VERSION_1 ? V1_OF_DATA : V2_OF_DATA;
+        }
+
+        long firstLsn(){
+            return base + headerSize;
+        }
+
+        void close(){
+            try {
+                fc.close();
+                raf.close();
+            }catch (IOException e){
+                Panic.panic(e);
+            }
+        }
+    }
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    private String path;
+    private List<Segment> segments; // 按LSN排列的段，最后一个为当前写入的段
+    private Segment current;
     private Lock lock;
+    private Condition flushed; // 一批日志落盘
 
-    private long position; // 当前日志指针的位置
-    private long fileSize; // 文件大小
-    private int xCheckSum; // 日志文件校验和
+    private LogReader reader; // next 使用的读取器
 
+    private ByteBuffer buffer; // 等待写盘的日志
+    private ByteBuffer spare; // 正在写盘的日志，写完后和 buffer 交换
+    private long appended; // 已经追加的日志的末尾位置
+    private long durable; // 已经落盘的日志的末尾位置
+    private boolean flushing; // 是否有线程在写盘
 
-    // 之后每次打开时使用
-    public LoggerImpl(RandomAccessFile file, FileChannel fc) {
-        this.file = file;
-        this.fc = fc;
+
+    private LoggerImpl(String path) {
+        this.path = path;
+        this.segments = new ArrayList<>();
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        spare = ByteBuffer.allocate(BUFFER_SIZE);
     }
 
-    // 首次创建时使用
-    public LoggerImpl(RandomAccessFile file, FileChannel fc, int xCheckSum) {
-        this.file = file;
-        this.fc = fc;
-        this.xCheckSum = xCheckSum;
-        lock = new ReentrantLock();
+    // 之后每次打开时使用，files为所有段文件
+    public LoggerImpl(String path, File[] files) {
+        this(path);
+        for (File file : files) {
+            segments.add(new Segment(segmentBase(path, file), file, VERSION_2));
+        }
+        segments.sort(Comparator.comparingLong(seg -> seg.base));
+    }
+
+    // 首次创建时使用，第一个段的文件头已经写入
+    public LoggerImpl(String path, File file) {
+        this(path);
+        current = new Segment(0, file, VERSION_2);
+        current.size = current.headerSize;
+        segments.add(current);
+        appended = current.firstLsn();
+        durable = appended;
+        rewind();
+    }
+
+    /*
+        v2文件头
+     */
+    public static byte[] header(){
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(Parser.int2Byte(MAGIC), 0, header, OF_MAGIC, 4);
+        System.arraycopy(Parser.int2Byte(VERSION_2), 0, header, OF_VERSION, 4);
+        return header;
+    }
+
+    /*
+        列出所有段文件
+     */
+    public static File[] listSegments(String path){
+        File log = new File(path + LOG_SUFFIX).getAbsoluteFile();
+        String prefix = log.getName() + ".";
+        File[] files = log.getParentFile().listFiles((dir, name) -> name.equals(log.getName())
+                || (name.startsWith(prefix) && isBase(name.substring(prefix.length()))));
+        return files == null ? new File[0] : files;
+    }
+
+    private static boolean isBase(String s){
+        if (s.length() != 16) return false;
+        for (char c : s.toCharArray()) {
+            if (Character.digit(c, 16) < 0) return false;
+        }
+        return true;
+    }
+
+    private static long segmentBase(String path, File file){
+        String log = new File(path + LOG_SUFFIX).getName();
+        if (file.getName().equals(log)) return 0;
+        return Long.parseUnsignedLong(file.getName().substring(log.length() + 1), 16);
+    }
+
+    private File segmentFile(long base){
+        return new File(path + LOG_SUFFIX + "." + String.format("%016x", base));
     }
 
     /*
@@ -64,198 +212,405 @@ public class LoggerImpl implements Logger {
      */
     @Override
     public void init() {
+        for (Segment seg : segments) {
+            readHeader(seg);
+        }
+        checkAndRemoveTail();
+    }
+
+    /*
+        读取段的文件头：有魔数和版本号的是v2，否则前4个字节是v1的文件校验和
+     */
+    private void readHeader(Segment seg){
         long size = 0;
         try {
-            size = file.length();
+            size = seg.fc.size();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if (size < 4) Panic.panic(Error.BadLogFileException);
+        if (size < V1_HEADER_SIZE) Panic.panic(Error.BadLogFileException);
 
-        ByteBuffer buf = ByteBuffer.allocate(4);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
         try {
-            fc.position(0);
-            fc.read(buf);
+            seg.fc.read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xCheckSum = Parser.parseInt(buf.array());
+        byte[] header = buf.array();
 
-        // 日志文件大小和校验和
-        this.xCheckSum = xCheckSum;
-        this.fileSize = size;
-
-        checkAndRemoveTail();
+        if (size >= HEADER_SIZE
+                && Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_MAGIC + 4)) == MAGIC
+                && Parser.parseInt(Arrays.copyOfRange(header, OF_VERSION, OF_VERSION + 4)) == VERSION_2){
+            return;
+        }
+        // 只有第一个段可能是v1
+        if (seg.base != 0) Panic.panic(Error.BadLogFileException);
+        seg.setVersion(VERSION_1);
+        seg.xCheckSum = Parser.parseInt(header);
     }
 
     /*
-        校验文件和，移除未写完的日志
+        按顺序检查每个段，找到最后一条完整的日志，移除未写完的日志和之后的段
+        v1还要校验文件和
      */
     private void checkAndRemoveTail(){
-        rewind();
-
-        // 校验文件和
-        int xCheck = 0;
-        while (true){
-            byte[] log = internNext();
-            if(log == null) break;
-            xCheck = calCheckSUm(xCheck,log);
+        for (Segment seg : segments) {
+            try {
+                seg.size = seg.fc.size();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
         }
 
-        if (xCheck != xCheckSum) Panic.panic(Error.BadLogFileException);
+        LogReader check = new LogReader(segments, 0, segments.get(0).headerSize);
+        while (check.next() != null);
+        Segment first = segments.get(0);
+        if (first.version == VERSION_1 && check.getXCheckSum() != first.xCheckSum){
+            Panic.panic(Error.BadLogFileException);
+        }
 
-        // 移除未写完的日志
-        try {
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
+        int last = check.getReading();
+        Segment seg = segments.get(last);
+        if (check.getPosition() < seg.size){
+            // 移除未写完的日志
+            try {
+                seg.fc.truncate(check.getPosition());
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            seg.size = check.getPosition();
         }
 
-        // 文件移到最后的写入位置
-        try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
+        // 坏掉的日志之后的段不再有效
+        while (segments.size() > last + 1){
+            delete(segments.remove(segments.size() - 1));
         }
 
-        rewind();
+        current = segments.get(segments.size() - 1);
+        appended = current.base + current.size;
+        durable = appended;
 
+        rewind();
     }
 
     /*
         计算日志的校验和
      */
-    private int calCheckSUm(int xCheck, byte[] log){
-        for (byte b : log) {
-            xCheck = xCheck*SEED + b;
+    private static int calCheckSUm(int xCheck, byte[] log){
+        return calCheckSum(xCheck, log, 0, log.length);
+    }
+
+    static int calCheckSum(int xCheck, byte[] raw, int start, int length){
+        for(int i = start; i < start + length; i++){
+            xCheck = xCheck*SEED + raw[i];
         }
         return xCheck;
     }
 
     /*
-        将日志写入日志文件
+        将日志追加到日志缓冲区，返回日志的LSN
      */
     @Override
-    public void writeLog(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public long writeLog(byte[] data) {
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            long lsn = append(data);
+            if (buffer.position() >= FLUSH_THRESHOLD && !flushing) flushBatch();
+            return lsn;
+        }finally {
+            lock.unlock();
         }
-        updateXCheckSum(log);
     }
 
     /*
-        合并数组：[Size][Checksum][Data]
-        行程日志的格式
+        等待 lsn 处（含）之前的日志落盘
      */
-    private byte[] wrapLog(byte[] data){
-        byte[] size = Parser.int2Byte(data.length);
-        byte[] checksum = Parser.int2Byte(calCheckSUm(0, data));
+    @Override
+    public void flush(long lsn) {
+        lock.lock();
+        try {
+            long end = Math.min(lsn + 1, appended);
+            while (durable < end){
+                if (flushing){
+                    // 其他线程正在写盘，等待这一批写完后再检查
+                    flushed.awaitUninterruptibly();
+                }else{
+                    flushBatch();
+                }
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
 
-        return Bytes.concat(size,checksum,data);
+    /*
+        把日志追加到缓冲区，返回日志的LSN，需要持有锁
+        当前段写满时先新建下一个段
+        v2的LSN就是日志写入的位置；v1同时更新文件校验和
+     */
+    private long append(byte[] data){
+        if (isFull(data.length)){
+            // 等待期间其他线程可能已经新建了段
+            awaitDurable();
+            if (isFull(data.length)) roll();
+        }
+
+        int length = current.ofData + data.length;
+        if (buffer.remaining() < length){
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        long lsn = appended;
+        if (current.version == VERSION_1){
+            byte[] log = wrapLogV1(data);
+            buffer.put(log);
+            current.xCheckSum = calCheckSUm(current.xCheckSum, log);
+        }else{
+            buffer.putInt(data.length);
+            buffer.putInt(checksum(lsn, data));
+            buffer.putLong(lsn);
+            buffer.put(data);
+        }
+        appended += length;
+        return lsn;
     }
 
     /*
-        更新文件校验和
+        当前段放不下长度为 length 的数据，段中至少已经有一条日志
      */
-    private void updateXCheckSum(byte[] log){
-        this.xCheckSum = calCheckSUm(this.xCheckSum,log);
+    private boolean isFull(int length){
+        return appended - current.base + current.ofData + length > SEGMENT_SIZE && appended > current.firstLsn();
+    }
+
+    /*
+        等待已经追加的日志全部落盘，需要持有锁，等待期间会释放锁
+        新建段之前调用，保证每一批日志只属于一个段；返回之后调用者需要重新检查是否还需要新建段
+     */
+    private void awaitDurable(){
+        while (flushing || durable < appended){
+            if (flushing) flushed.awaitUninterruptibly();
+            else flushBatch();
+        }
+    }
+
+    /*
+        新建下一个段，需要持有锁，已经追加的日志都已经落盘（见 awaitDurable）
+        新段的文件头之后紧接着就是 appended 处的日志
+     */
+    private void roll(){
+        long base = appended - HEADER_SIZE;
+        File file = segmentFile(base);
+        try {
+            if (!file.createNewFile()) Panic.panic(Error.FileExistsException);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        Segment seg = new Segment(base, file, VERSION_2);
+        ByteBuffer header = ByteBuffer.wrap(header());
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)));
-            fc.force(false);
+            while (header.hasRemaining()){
+                seg.fc.write(header, header.position());
+            }
+            seg.fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        seg.size = HEADER_SIZE;
+        segments.add(seg);
+        current = seg;
+    }
+
+    /*
+        作为leader把缓冲区中的日志写盘，需要持有锁，写盘期间释放锁
+        v2只需要一次顺序写和一次fsync
+        v1先写入日志并fsync，再写入文件校验和并fsync，崩溃时校验和不会覆盖还没有落盘的日志
+     */
+    private void flushBatch(){
+        flushing = true;
+        ByteBuffer batch = buffer;
+        buffer = spare;
+        spare = batch;
+        Segment seg = current;
+        long start = durable;
+        long end = appended;
+        int checkSum = seg.xCheckSum;
+
+        lock.unlock();
+        try {
+            batch.flip();
+            long offset = start - seg.base;
+            while (batch.hasRemaining()){
+                seg.fc.write(batch, offset + batch.position());
+            }
+            seg.fc.force(false);
+            if (seg.version == VERSION_1){
+                ByteBuffer header = ByteBuffer.wrap(Parser.int2Byte(checkSum));
+                while (header.hasRemaining()){
+                    seg.fc.write(header, header.position());
+                }
+                seg.fc.force(false);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            batch.clear();
+            lock.lock();
+        }
+
+        durable = end;
+        seg.size = end - seg.base;
+        flushing = false;
+        flushed.signalAll();
+    }
+
+    /*
+        v1日志的格式：[Size][Checksum][Data]
+     */
+    private byte[] wrapLogV1(byte[] data){
+        ByteBuffer log = ByteBuffer.allocate(V1_OF_DATA + data.length);
+        log.putInt(data.length);
+        log.putInt(calCheckSUm(0, data));
+        log.put(data);
+        return log.array();
     }
 
+    /*
+        v2日志的校验和：LSN和数据的CRC32C
+     */
+    private static int checksum(long lsn, byte[] data){
+        return checksum(lsn, data, 0, data.length);
+    }
+
+    static int checksum(long lsn, byte[] raw, int start, int length){
+        return CRC32C.newHasher(8 + length)
+                .putLong(lsn)
+                .putBytes(raw, start, length)
+                .hash()
+                .asInt();
+    }
 
     /*
-        截断文件
+        下一条日志的LSN
+     */
+    @Override
+    public long nextLsn() {
+        lock.lock();
+        try {
+            return appended;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+        删除只包含 lsn 之前日志的段，当前段不会被删除
+        当前段是v1时先新建一个v2的段，之后旧的日志文件也可以被删除
+     */
+    @Override
+    public void removeBefore(long lsn) {
+        lock.lock();
+        try {
+            if (current.version == VERSION_1){
+                awaitDurable();
+                if (current.version == VERSION_1) roll();
+            }
+            while (segments.size() > 1 && segments.get(1).firstLsn() <= lsn){
+                delete(segments.remove(0));
+            }
+            rewind();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private void delete(Segment seg){
+        seg.close();
+        if (!seg.file.delete()) Panic.panic(Error.FileCannotRWException);
+    }
+
+    /*
+        截断当前段
      */
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try{
-            fc.truncate(x);
+            current.fc.truncate(x);
         }finally {
             lock.unlock();
         }
     }
 
     /*
-        读取日志
+        读取日志，当前段读完后继续读下一个段
      */
     @Override
     public byte[] next() {
         lock.lock();
         try{
-            byte[] log = internNext();
-            if(log == null) return null;
-            return Arrays.copyOfRange(log,OF_DATA,log.length);
+            SubArray log = reader.next();
+            if (log == null) return null;
+            return Arrays.copyOfRange(log.raw, log.start, log.end);
         }finally {
             lock.unlock();
         }
     }
 
     /*
-        读取日志
+        移动指针到第一条日志的位置
      */
-    private byte[] internNext(){
-
-        // 日志已经读完
-        if(position + OF_DATA >= fileSize) return null;
-
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        // 日志长度
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) return null;
+    @Override
+    public void rewind() {
+        reader = new LogReader(segments, 0, segments.get(0).headerSize);
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    /*
+        移动指针到 lsn 处的日志
+     */
+    @Override
+    public void rewind(long lsn) {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            reader = reader(lsn);
+        }finally {
+            lock.unlock();
         }
-
-        byte[] log = buf.array();
-        int checkSum1 = calCheckSUm(0,Arrays.copyOfRange(log,OF_DATA,log.length)); // 计算得到的校验和
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log,OF_CHECKSUM,OF_DATA)); // 日志记录的校验和
-        if(checkSum1 != checkSum2) return null;
-
-        position += log.length;
-
-        return log;
     }
 
     /*
-        移动指针到第一条日志的位置
+        从 lsn 处的日志开始顺序读取，lsn 所在的段已经被删除时从第一条日志开始
+        读取期间不能删除段
      */
     @Override
-    public void rewind() {
-        position = 4;
+    public LogReader reader(long lsn) {
+        lock.lock();
+        try {
+            for(int i = segments.size() - 1; i >= 0; i--){
+                Segment seg = segments.get(i);
+                if (seg.firstLsn() <= lsn){
+                    return new LogReader(segments, i, lsn - seg.base);
+                }
+            }
+            return new LogReader(segments, 0, segments.get(0).headerSize);
+        }finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
+        flush(Long.MAX_VALUE - 1);
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        }catch (IOException e){
-            Panic.panic(e);
+            for (Segment seg : segments) {
+                seg.close();
+            }
+        }finally {
+            lock.unlock();
         }
     }
 
@@ -19,4 +19,10 @@ public interface Page {
 
     byte[] getData(); // 获取数据
 
+    long getLsn(); // 最后一次修改该页的日志的LSN
+
+    void setLsn(long lsn); // 修改页之后记录日志的LSN，只会增大
+
+    long getRecLsn(); // 页变脏之后第一条修改该页的日志的LSN，页被写回后清零，检查点的脏页表记录它
+
 }
@@ -0,0 +1,68 @@
+package com.whut.database.backend.DM.page;
+
+import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/*
+    空闲空间表页的管理
+    前两个字节为标志（普通页的空闲位置偏移量不可能为负数，以此区分空闲空间表页）
+    接着4个字节为下一个空闲空间表页的页号，0表示没有下一页
+    后面每个字节记录一个页的空闲空间，单位为 UNIT 字节，向下取整
+    [Flag] [Next] [Entry] [Entry] ...
+
+    第k个空闲空间表页（从0开始）记录页号 k*ENTRIES+1 ~ (k+1)*ENTRIES 的页
+    第一页和空闲空间表页自己的记录始终为0，记录为0的页不会被加入页面索引
+ */
+public class PageFsm {
+
+    private static final short FLAG = (short) 0xFFFF;
+    private static final int OF_FLAG = 0;
+    private static final int OF_NEXT = OF_FLAG + 2;
+    private static final int OF_ENTRIES = OF_NEXT + 4;
+
+    private static final int UNIT = 32;
+    private static final int MAX_ENTRY = 0xFF;
+    public static final int ENTRIES = PageCache.PAGE_SIZE - OF_ENTRIES; // 每页记录的页数
+
+    /*
+        初始化空闲空间表页
+     */
+    public static byte[] initRaw(){
+        byte[] raw = new byte[PageCache.PAGE_SIZE];
+        System.arraycopy(Parser.short2Byte(FLAG), 0, raw, OF_FLAG, 2);
+        return raw;
+    }
+
+    public static boolean isFsmPage(Page pg){
+        return Parser.parseShort(Arrays.copyOfRange(pg.getData(), OF_FLAG, OF_FLAG + 2)) == FLAG;
+    }
+
+    public static int getNext(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_NEXT, OF_NEXT + 4));
+    }
+
+    public static void setNext(Page pg, int next){
+        pg.setDirty(true);
+        System.arraycopy(Parser.int2Byte(next), 0, pg.getData(), OF_NEXT, 4);
+    }
+
+    /*
+        获取第 idx 条记录的空闲空间
+     */
+    public static int getFreeSpace(Page pg, int idx){
+        return (pg.getData()[OF_ENTRIES + idx] & 0xFF) * UNIT;
+    }
+
+    /*
+        修改第 idx 条记录，记录没有变化时不标记脏页
+     */
+    public static void setFreeSpace(Page pg, int idx, int freeSpace){
+        byte entry = (byte) Math.min(MAX_ENTRY, freeSpace / UNIT);
+        if (pg.getData()[OF_ENTRIES + idx] == entry) return;
+        pg.setDirty(true);
+        pg.getData()[OF_ENTRIES + idx] = entry;
+    }
+
+}
@@ -4,6 +4,7 @@ package com.whut.database.backend.DM.page;
 
 import com.whut.database.backend.DM.pageCache.PageCache;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -13,7 +14,11 @@ public class PageImpl implements Page {
 
     private byte[] data; // 页数据
 
-    private boolean dirty; // 脏页标志
+    private volatile boolean dirty; // 脏页标志，后台写回线程会读取
+
+    private AtomicLong lsn; // 最后一次修改该页的日志的LSN，写回之前这条日志需要先落盘
+
+    private AtomicLong recLsn; // 页变脏之后第一条修改该页的日志的LSN，0表示写回之后还没有记录日志的修改
 
     private Lock lock; // 锁
 
@@ -24,6 +29,8 @@ public class PageImpl implements Page {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
+        this.lsn = new AtomicLong();
+        this.recLsn = new AtomicLong();
         lock = new ReentrantLock();
     }
 
@@ -44,6 +51,8 @@ public class PageImpl implements Page {
 
     @Override
     public void setDirty(boolean dirty) {
+        // 写回时页上没有正在进行的修改，写回之后的修改重新记录
+        if (!dirty) recLsn.set(0);
         this.dirty = dirty;
     }
 
@@ -62,4 +71,21 @@ public class PageImpl implements Page {
         return data;
     }
 
+    @Override
+    public long getLsn() {
+        return lsn.get();
+    }
+
+    @Override
+    public void setLsn(long lsn) {
+        // 多个线程同时修改同一页的不同数据时，记录较大的LSN
+        this.lsn.accumulateAndGet(lsn, Math::max);
+        this.recLsn.accumulateAndGet(lsn, (cur, x) -> cur == 0 ? x : Math.min(cur, x));
+    }
+
+    @Override
+    public long getRecLsn() {
+        return recLsn.get();
+    }
+
 }
@@ -1,29 +1,31 @@
 package com.whut.database.backend.DM.page;
 
+import com.whut.database.backend.DM.dataItem.DataItem;
 import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.common.SubArray;
 import com.whut.database.backend.utils.Parser;
 
 import java.util.Arrays;
 
 /*
     普通页的管理
-    前两个字节表示空闲位置的偏移量
-    后面的字节存储数据
+    普通页有两种格式：新建的页都是分槽页（见 PageSlotted），旧版本文件中的页是追加页
+    这里的方法根据页的格式分别处理，pos 对分槽页是槽号，对追加页是偏移量
+
+    追加页：前两个字节表示空闲位置的偏移量，后面的字节存储数据，只能追加，空间不会被回收
     [FreeSpaceOffset] [Data]
  */
 public class PageNormal {
 
     private static final short OF_FREE = 0;
     private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    public static final int MAX_FREE_SPACE = PageSlotted.MAX_FREE_SPACE;
 
     /*
         初始化普通页
      */
     public static byte[] initRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw,OF_DATA);
-        return raw;
+        return PageSlotted.initRaw();
     }
 
 
@@ -43,9 +45,34 @@ public class PageNormal {
     }
 
     /*
-        向页面插入数据
+        页还没有被初始化（新页在写入磁盘之前崩溃）
+     */
+    public static boolean isEmpty(Page pg){
+        return getFSO(pg) == 0;
+    }
+
+    /*
+        页头中记录的最后一条日志的LSN，追加页没有记录，返回0
+     */
+    public static long getLsn(Page pg){
+        if (PageSlotted.isSlotted(pg)) return PageSlotted.getLsn(pg);
+        return 0;
+    }
+
+    /*
+        修改页之后记录日志的LSN：页缓存写回之前让日志落盘到该LSN，分槽页同时写入页头
+     */
+    public static void setLsn(Page pg, long lsn){
+        pg.setLsn(lsn);
+        if (PageSlotted.isSlotted(pg)) PageSlotted.setLsn(pg, lsn);
+    }
+
+    /*
+        向页面插入数据，返回数据的位置
      */
     public static short insert(Page pg, byte[] raw){
+        if (PageSlotted.isSlotted(pg)) return PageSlotted.insert(pg, raw);
+
         pg.setDirty(true);
         // 获取页面的空闲位置
         short offset = getFSO(pg.getData());
@@ -60,32 +87,54 @@ public class PageNormal {
         获取页面的空闲空间大小
      */
     public static int getFreeSpace(Page pg){
+        if (PageSlotted.isSlotted(pg)) return PageSlotted.getFreeSpace(pg);
         return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
     }
 
     /*
-        数据库异常崩溃重启后：恢复插入
+        获取数据在页内的偏移量，数据已经被释放时返回0
+     */
+    public static short getOffset(Page pg, short pos){
+        if (PageSlotted.isSlotted(pg)) return PageSlotted.getOffset(pg, pos);
+        return pos;
+    }
+
+    /*
+        释放数据：分槽页释放槽，追加页的空间无法回收，只把数据标记为无效
+     */
+    public static void free(Page pg, short pos){
+        if (PageSlotted.isSlotted(pg)){
+            PageSlotted.free(pg, pos);
+            return;
+        }
+        pg.setDirty(true);
+        pg.getData()[pos + DataItem.OF_VALID] = (byte) 1;
+    }
+
+    /*
+        数据库异常崩溃重启后：恢复插入（追加页）
      */
-    public static void recoverInsert(Page pg, byte[] raw, short offset){
+    public static void recoverInsert(Page pg, SubArray raw, short offset){
         pg.setDirty(true);
-        System.arraycopy(raw,0,pg.getData(),offset,offset+raw.length);
+        int length = raw.end - raw.start;
+        System.arraycopy(raw.raw,raw.start,pg.getData(),offset,length);
 
         /*
             如果偏移量小，说明这次插入是有效插入，修改空闲位置
             疑问：如果偏移量大，那是不是不需要此次插入？
          */
         short fso = getFSO(pg.getData());
-        if(fso < offset+raw.length){
-            setFSO(pg.getData(),(short)(offset+raw.length));
+        if(fso < offset+length){
+            setFSO(pg.getData(),(short)(offset+length));
         }
     }
 
     /*
        数据库异常崩溃重启后：恢复修改
      */
-    public static void recoverUpdate(Page pg, byte[] raw, short offset){
+    public static void recoverUpdate(Page pg, SubArray raw, short offset){
         pg.setDirty(true);
-        System.arraycopy(raw,0,pg.getData(),offset,offset+raw.length);
+        System.arraycopy(raw.raw,raw.start,pg.getData(),offset,raw.end - raw.start);
     }
 
 
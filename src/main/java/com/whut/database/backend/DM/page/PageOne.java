@@ -1,6 +1,7 @@
 package com.whut.database.backend.DM.page;
 
 import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.utils.Parser;
 import com.whut.database.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -10,11 +11,24 @@ import java.util.Arrays;
 
     db启动时给100~107字节处填入一串随机字节，db关闭时将其拷贝到108~115字节
     下一次启动时，如果相同的话，说明是正常关闭，否则，进入数据恢复过程
+
+    200~203字节处记录第一个空闲空间表页的页号，0表示还没有空闲空间表
+    204~207字节处记录数据库文件的格式版本
+    208~215字节处记录最近一次检查点日志的LSN，恢复时从这条日志中读取恢复起点和脏页表，0表示从第一条日志开始恢复
+    （旧版本的文件在这里直接记录恢复起点，那时的检查点写回了所有脏页）
  */
 public class PageOne {
 
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_FSM = 200;
+    private static final int OF_VERSION = 204;
+    private static final int OF_CHECKPOINT = 208;
+
+    /*
+        格式版本：0为旧版本，普通页都是追加页；1开始新建的普通页为分槽页，旧的追加页仍然可以读写
+     */
+    public static final int VERSION = 1;
 
     /*
         数据库启动时，就设置初始字节
@@ -61,5 +75,40 @@ public class PageOne {
         return Arrays.equals(start,end);
     }
 
+    /*
+        空闲空间表的第一页
+     */
+    public static int getFsm(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_FSM, OF_FSM + 4));
+    }
+
+    public static void setFsm(Page pg, int pgno){
+        pg.setDirty(true);
+        System.arraycopy(Parser.int2Byte(pgno), 0, pg.getData(), OF_FSM, 4);
+    }
+
+    /*
+        数据库文件的格式版本
+     */
+    public static int getVersion(Page pg){
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_VERSION, OF_VERSION + 4));
+    }
+
+    public static void setVersion(Page pg, int version){
+        pg.setDirty(true);
+        System.arraycopy(Parser.int2Byte(version), 0, pg.getData(), OF_VERSION, 4);
+    }
+
+    /*
+        最近一次检查点日志的LSN
+     */
+    public static long getCheckpoint(Page pg){
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_CHECKPOINT, OF_CHECKPOINT + 8));
+    }
+
+    public static void setCheckpoint(Page pg, long lsn){
+        pg.setDirty(true);
+        System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_CHECKPOINT, 8);
+    }
 
 }
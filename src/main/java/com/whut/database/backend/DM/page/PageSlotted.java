@@ -0,0 +1,319 @@
+package com.whut.database.backend.DM.page;
+
+import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.common.SubArray;
+import com.whut.database.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/*
+    分槽页的管理
+    页头之后是槽目录，从前向后增长；数据从页尾向前增长，两者之间为空闲空间
+    [Flag] [SlotCount] [DataStart] [FreeSlot] [PageLSN] [Slot0] [Slot1] ... [FreeSpace] ... [Data1] [Data0]
+    Flag：前两个字节为负数，与追加页（前两个字节为空闲位置偏移量）区分
+    FreeSlot：可以重新使用的空闲槽链表的第一个槽，NO_SLOT 表示没有
+    PageLSN：页中已经包含的最后一条日志的LSN，崩溃恢复时跳过LSN不大于它的日志
+    Slot：[Offset] [Length]，Offset为0表示该槽已经被释放，空闲槽链表中的槽的Length为下一个空闲槽，
+    刚释放还不能重用的槽的Length为 PENDING
+
+    uid中的页内位置是槽号，数据在页内移动时只修改槽中的偏移量，uid不变
+    释放时索引中已经没有对该uid的引用（见 Table.vacuum），但是正在执行的语句可能还持有之前从索引中读到的uid，
+    所以释放的槽先等待，由调用者确认这些语句都已经结束后（见 DataManagerImpl.free）调用 release，
+    之后整理页时加入空闲槽链表，插入时优先使用；整理页时只有整理的线程引用该页，缓存中也不会再有该uid的旧数据项
+ */
+public class PageSlotted {
+
+    private static final short FLAG = (short) 0x8001;
+    private static final int OF_FLAG = 0;
+    private static final int OF_SLOT_COUNT = OF_FLAG + 2;
+    private static final int OF_DATA_START = OF_SLOT_COUNT + 2;
+    private static final int OF_FREE_SLOT = OF_DATA_START + 2;
+    private static final int OF_LSN = OF_FREE_SLOT + 2;
+    private static final int OF_SLOTS = OF_LSN + 8;
+
+    private static final int SLOT_SIZE = 4;
+    private static final int OF_SLOT_OFFSET = 0;
+    private static final int OF_SLOT_LENGTH = 2;
+    private static final short NO_SLOT = -1; // 空闲槽链表的结尾
+    private static final short PENDING = -2; // 释放之后还不能重用的槽
+
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_SLOTS - SLOT_SIZE;
+
+    /*
+        初始化分槽页
+     */
+    public static byte[] initRaw(){
+        byte[] raw = new byte[PageCache.PAGE_SIZE];
+        init(raw);
+        return raw;
+    }
+
+    private static void init(byte[] raw){
+        setShort(raw, OF_FLAG, FLAG);
+        setShort(raw, OF_SLOT_COUNT, (short) 0);
+        setShort(raw, OF_DATA_START, (short) PageCache.PAGE_SIZE);
+        setShort(raw, OF_FREE_SLOT, NO_SLOT);
+    }
+
+    public static boolean isSlotted(Page pg){
+        return getShort(pg.getData(), OF_FLAG) == FLAG;
+    }
+
+    /*
+        页中已经包含的最后一条日志的LSN
+     */
+    public static long getLsn(Page pg){
+        byte[] data = pg.getData();
+        return Parser.parseLong(Arrays.copyOfRange(data, OF_LSN, OF_LSN + 8));
+    }
+
+    /*
+        修改页之后记录日志的LSN，只会增大
+        同一页的不同数据可能被多个线程同时修改，加页锁，页被写回时没有线程在修改该页
+     */
+    public static void setLsn(Page pg, long lsn){
+        byte[] data = pg.getData();
+        pg.lock();
+        try {
+            if (lsn > getLsn(pg)) System.arraycopy(Parser.long2Byte(lsn), 0, data, OF_LSN, 8);
+        }finally {
+            pg.unlock();
+        }
+    }
+
+    /*
+        下一次插入使用的槽号：空闲槽链表的第一个槽，没有时使用新槽
+     */
+    public static short getNextSlot(Page pg){
+        byte[] data = pg.getData();
+        short free = getShort(data, OF_FREE_SLOT);
+        return free != NO_SLOT ? free : getShort(data, OF_SLOT_COUNT);
+    }
+
+    /*
+        向页面插入数据，返回槽号
+     */
+    public static short insert(Page pg, byte[] raw){
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        short slot = getShort(data, OF_FREE_SLOT);
+        if (slot != NO_SLOT){
+            setShort(data, OF_FREE_SLOT, getShort(data, slotPos(data, slot) + OF_SLOT_LENGTH));
+        }else {
+            slot = getShort(data, OF_SLOT_COUNT);
+            setShort(data, OF_SLOT_COUNT, (short)(slot + 1));
+        }
+        put(data, slot, raw, 0, raw.length);
+        return slot;
+    }
+
+    /*
+        把数据放在空闲空间的末尾，由槽slot指向它
+     */
+    private static void put(byte[] data, short slot, byte[] raw, int start, int length){
+        int offset = getDataStart(data) - length;
+        System.arraycopy(raw, start, data, offset, length);
+        setSlot(data, slot, offset, length);
+        setShort(data, OF_DATA_START, (short) offset);
+    }
+
+    /*
+        获取槽中数据的偏移量，槽不存在或已经被释放时返回0
+     */
+    public static short getOffset(Page pg, short slot){
+        byte[] data = pg.getData();
+        if (slot < 0 || slot >= getShort(data, OF_SLOT_COUNT)) return 0;
+        return getShort(data, slotPos(data, slot) + OF_SLOT_OFFSET);
+    }
+
+    /*
+        释放槽，数据占用的空间在整理页时回收，槽在 release 之后才会被重用
+     */
+    public static void free(Page pg, short slot){
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        if (slot < 0 || slot >= getShort(data, OF_SLOT_COUNT)) return;
+        // 已经释放的槽可能在空闲槽链表中，不能覆盖
+        if (getShort(data, slotPos(data, slot) + OF_SLOT_OFFSET) == 0) return;
+        setSlot(data, slot, 0, PENDING);
+    }
+
+    /*
+        之前释放的槽都可以重用了，在下一次整理页时加入空闲槽链表
+        等待不需要记录日志：重启之后不会有语句还持有之前释放的uid
+     */
+    public static void release(Page pg){
+        byte[] data = pg.getData();
+        short count = getShort(data, OF_SLOT_COUNT);
+        for(short i = 0; i < count; i++){
+            if (isPending(data, i)){
+                pg.setDirty(true);
+                setSlot(data, i, 0, 0);
+            }
+        }
+    }
+
+    private static boolean isPending(byte[] data, short slot){
+        return getShort(data, slotPos(data, slot) + OF_SLOT_OFFSET) == 0
+                && getShort(data, slotPos(data, slot) + OF_SLOT_LENGTH) == PENDING;
+    }
+
+    /*
+        获取页面能够插入的最大数据长度（连续的空闲空间，没有空闲槽时减去新槽占用的空间）
+     */
+    public static int getFreeSpace(Page pg){
+        byte[] data = pg.getData();
+        int free = getDataStart(data) - slotPos(data, getShort(data, OF_SLOT_COUNT));
+        if (getShort(data, OF_FREE_SLOT) == NO_SLOT) free -= SLOT_SIZE;
+        return Math.max(free, 0);
+    }
+
+    /*
+        获取整理之后能够插入的最大数据长度
+     */
+    public static int getFreeSpaceAfterCompact(Page pg){
+        byte[] data = pg.getData();
+        short count = getShort(data, OF_SLOT_COUNT);
+        int used = 0;
+        boolean freeSlot = false;
+        for(short i = 0; i < count; i++){
+            if (getShort(data, slotPos(data, i) + OF_SLOT_OFFSET) == 0) freeSlot |= !isPending(data, i);
+            else used += getShort(data, slotPos(data, i) + OF_SLOT_LENGTH);
+        }
+        int free = PageCache.PAGE_SIZE - used - slotPos(data, count) - (freeSlot ? 0 : SLOT_SIZE);
+        return Math.max(free, 0);
+    }
+
+    /*
+        整理页：把有效数据紧凑地移动到页尾，回收被释放的数据占用的空间，可以重用的槽全部加入空闲槽链表
+        调用者需要保证整理期间没有其他线程访问该页的数据
+     */
+    public static void compact(Page pg){
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        short count = getShort(data, OF_SLOT_COUNT);
+
+        // 按偏移量从大到小移动，数据只会向页尾移动，不会覆盖还没有移动的数据
+        long[] live = new long[count];
+        int n = 0;
+        short freeSlot = NO_SLOT;
+        for(short i = (short)(count - 1); i >= 0; i--){
+            short offset = getShort(data, slotPos(data, i) + OF_SLOT_OFFSET);
+            if (offset != 0){
+                live[n++] = ((long) offset << 16) | i;
+            }else if (!isPending(data, i)){
+                // 从后向前链接，槽号小的在前面
+                setSlot(data, i, 0, freeSlot);
+                freeSlot = i;
+            }
+        }
+        setShort(data, OF_FREE_SLOT, freeSlot);
+        Arrays.sort(live, 0, n);
+
+        int dataStart = PageCache.PAGE_SIZE;
+        for(int k = n - 1; k >= 0; k--){
+            short slot = (short)(live[k] & 0xFFFF);
+            int offset = (int)(live[k] >>> 16);
+            int length = getShort(data, slotPos(data, slot) + OF_SLOT_LENGTH);
+            dataStart -= length;
+            System.arraycopy(data, offset, data, dataStart, length);
+            setSlot(data, slot, dataStart, length);
+        }
+        setShort(data, OF_DATA_START, (short) dataStart);
+    }
+
+    /*
+        数据库异常崩溃重启后：恢复插入
+        重做跳过了页中已经包含的日志，页处于插入之前的状态：该槽是空闲槽（可能还在等待重用）或者新槽
+        槽中已经有数据时在原位置重写数据；空闲槽先从空闲槽链表中摘下；新槽补齐中间的槽再插入
+        页还没有初始化（新页没有写入磁盘）时先初始化
+     */
+    public static void recoverInsert(Page pg, SubArray raw, short slot){
+        pg.setDirty(true);
+        int length = raw.end - raw.start;
+        byte[] data = pg.getData();
+        if (!isSlotted(pg)) init(data);
+
+        short count = getShort(data, OF_SLOT_COUNT);
+        if (slot < count){
+            short offset = getShort(data, slotPos(data, slot) + OF_SLOT_OFFSET);
+            if (offset != 0){
+                System.arraycopy(raw.raw, raw.start, data, offset, length);
+                return;
+            }
+            // 整理会重建空闲槽链表，先整理再摘下该槽
+            if (getDataStart(data) - slotPos(data, count) < length) compact(pg);
+            unlinkFreeSlot(data, slot);
+            put(data, slot, raw.raw, raw.start, length);
+            return;
+        }
+
+        // 中间缺少的槽按已经释放处理
+        for(short i = count; i < slot; i++){
+            setSlot(data, i, 0, 0);
+        }
+        setShort(data, OF_SLOT_COUNT, slot);
+        if (getDataStart(data) - slotPos(data, slot + 1) < length) compact(pg);
+        setShort(data, OF_SLOT_COUNT, (short)(slot + 1));
+        put(data, slot, raw.raw, raw.start, length);
+    }
+
+    /*
+        从空闲槽链表中摘下slot，不在链表中时什么也不做
+     */
+    private static void unlinkFreeSlot(byte[] data, short slot){
+        short prev = NO_SLOT;
+        short cur = getShort(data, OF_FREE_SLOT);
+        while (cur != NO_SLOT && cur != slot){
+            prev = cur;
+            cur = getShort(data, slotPos(data, cur) + OF_SLOT_LENGTH);
+        }
+        if (cur == NO_SLOT) return;
+
+        short next = getShort(data, slotPos(data, slot) + OF_SLOT_LENGTH);
+        if (prev == NO_SLOT) setShort(data, OF_FREE_SLOT, next);
+        else setShort(data, slotPos(data, prev) + OF_SLOT_LENGTH, next);
+        setSlot(data, slot, 0, 0);
+    }
+
+    /*
+        数据库异常崩溃重启后：恢复释放，回滚插入时同样释放该槽
+     */
+    public static void recoverFree(Page pg, short slot){
+        pg.setDirty(true);
+        byte[] data = pg.getData();
+        if (!isSlotted(pg)) init(data);
+
+        short count = getShort(data, OF_SLOT_COUNT);
+        if (slot >= count){
+            for(short i = count; i <= slot; i++){
+                setSlot(data, i, 0, 0);
+            }
+            setShort(data, OF_SLOT_COUNT, (short)(slot + 1));
+            return;
+        }
+        free(pg, slot);
+    }
+
+    private static int getDataStart(byte[] data){
+        return getShort(data, OF_DATA_START);
+    }
+
+    private static int slotPos(byte[] data, int slot){
+        return OF_SLOTS + slot * SLOT_SIZE;
+    }
+
+    private static void setSlot(byte[] data, short slot, int offset, int length){
+        setShort(data, slotPos(data, slot) + OF_SLOT_OFFSET, (short) offset);
+        setShort(data, slotPos(data, slot) + OF_SLOT_LENGTH, (short) length);
+    }
+
+    private static short getShort(byte[] data, int pos){
+        return Parser.parseShort(Arrays.copyOfRange(data, pos, pos + 2));
+    }
+
+    private static void setShort(byte[] data, int pos, short value){
+        System.arraycopy(Parser.short2Byte(value), 0, data, pos, 2);
+    }
+
+}
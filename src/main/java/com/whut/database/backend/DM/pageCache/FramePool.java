@@ -0,0 +1,44 @@
+package com.whut.database.backend.DM.pageCache;
+
+import com.whut.database.backend.utils.Panic;
+import com.whut.database.common.Error;
+
+/*
+    页帧池
+
+    启动时按照缓存大小一次性分配所有页帧，页被淘汰后页帧归还到池中，供下一次加载复用
+    加载页时直接把文件数据读进页帧，缓存命中与否都不会再分配新的页数组，
+    页帧一直存活，不会在新生代和老年代之间反复搬运
+ */
+public class FramePool {
+
+    private byte[][] frames; // 空闲页帧栈
+    private int top;
+
+    public FramePool(int frameNumber) {
+        frames = new byte[frameNumber][];
+        for(int i = 0; i < frameNumber; i++){
+            frames[i] = new byte[PageCache.PAGE_SIZE];
+        }
+        top = frameNumber;
+    }
+
+    /*
+        取出一个空闲页帧
+        页缓存保证同时加载的页数不超过页帧数，页帧不足说明缓存计数出错
+     */
+    public synchronized byte[] allocate(){
+        if (top == 0) Panic.panic(Error.CacheFullException);
+        byte[] frame = frames[--top];
+        frames[top] = null;
+        return frame;
+    }
+
+    /*
+        归还页帧
+     */
+    public synchronized void free(byte[] frame){
+        frames[top++] = frame;
+    }
+
+}
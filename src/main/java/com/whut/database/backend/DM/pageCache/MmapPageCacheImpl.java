@@ -0,0 +1,125 @@
+package com.whut.database.backend.DM.pageCache;
+
+import com.whut.database.backend.DM.page.Page;
+import com.whut.database.backend.common.ReplacementPolicy;
+import com.whut.database.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+    使用文件映射的页缓存
+
+    数据库文件按 SEGMENT_SIZE 分段映射到内存，页数据由操作系统的页缓存负责缓存，进程内不再保留第二份：
+    上层通过 byte[] 访问页数据，所以页被引用时从映射中拷贝到页帧（不需要系统调用），
+    引用个数减为0时干净的页立即移出缓存、归还页帧，只有还没有写回的脏页留在缓存中，由后台线程写回后移出，
+    这种模式下 -mem 只需要容纳同时被引用的页和等待写回的脏页
+    操作系统负责映射的预读，这里不再预读
+    写回仍然通过文件通道完成（写入对映射立即可见），newPage、flushPage、truncateByBgno 的语义与普通页缓存相同
+
+    映射只覆盖文件已有的部分（映射超出文件长度会扩展文件）：
+    文件增长后，新增部分先通过文件通道读取，增长到一定大小后再重新映射该段
+ */
+public class MmapPageCacheImpl extends PageCacheImpl {
+
+    private static final long SEGMENT_SIZE = 1L << 26; // 每段映射64MB
+    private static final long REMAP_SIZE = SEGMENT_SIZE / 8; // 未映射部分达到该大小时重新映射
+
+    private FileChannel fc;
+    private volatile MappedByteBuffer[] segments; // 每段的映射，修改时整体替换
+
+    public MmapPageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, ReplacementPolicy policy) {
+        super(file, fc, maxResource, policy, new FramePool(maxResource));
+        this.fc = fc;
+        this.segments = new MappedByteBuffer[0];
+    }
+
+    /*
+        只保留脏页，干净的页随时可以从映射中重新拷贝
+     */
+    @Override
+    protected boolean keepUnpinned(Page pg) {
+        return pg.isDirty();
+    }
+
+    @Override
+    public void prefetch(int pgno, int count) {
+    }
+
+    /*
+        从映射中读取数据，还没有被映射或者跨越两段时从文件通道读取
+     */
+    @Override
+    protected int read(long offset, byte[] data) {
+        int no = (int)(offset / SEGMENT_SIZE);
+        int pos = (int)(offset % SEGMENT_SIZE);
+        if (pos + data.length > SEGMENT_SIZE) return super.read(offset, data);
+
+        MappedByteBuffer segment = segment(no, pos + data.length);
+        if (segment == null) return super.read(offset, data);
+
+        ByteBuffer buf = segment.duplicate();
+        buf.position(pos);
+        buf.get(data, 0, data.length);
+        return data.length;
+    }
+
+    /*
+        获取覆盖段内前 need 个字节的映射
+     */
+    private MappedByteBuffer segment(int no, int need){
+        MappedByteBuffer[] segs = segments;
+        if (no < segs.length && segs[no] != null && segs[no].capacity() >= need) return segs[no];
+        return remap(no, need);
+    }
+
+    /*
+        重新映射一段，文件增长的部分还不够大时返回null
+     */
+    private synchronized MappedByteBuffer remap(int no, int need){
+        MappedByteBuffer[] segs = segments;
+        MappedByteBuffer old = no < segs.length ? segs[no] : null;
+        if (old != null && old.capacity() >= need) return old;
+
+        long start = no * SEGMENT_SIZE;
+        long length = 0;
+        try {
+            length = Math.min(SEGMENT_SIZE, fc.size() - start);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (length < need) return null;
+
+        int mapped = old == null ? 0 : old.capacity();
+        if (length < SEGMENT_SIZE && length - mapped < REMAP_SIZE) return null;
+
+        MappedByteBuffer segment = null;
+        try {
+            segment = fc.map(FileChannel.MapMode.READ_ONLY, start, length);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        MappedByteBuffer[] newSegs = Arrays.copyOf(segs, Math.max(segs.length, no + 1));
+        newSegs[no] = segment;
+        segments = newSegs;
+        return segment;
+    }
+
+    /*
+        截断文件后丢弃超出文件长度的映射，访问超出文件长度的映射会导致进程崩溃
+     */
+    @Override
+    public void truncateByBgno(int maxPgno) {
+        synchronized (this){
+            int no = (int)(pageOffset(maxPgno + 1) / SEGMENT_SIZE);
+            if (no < segments.length) segments = Arrays.copyOf(segments, no);
+        }
+        super.truncateByBgno(maxPgno);
+    }
+
+}
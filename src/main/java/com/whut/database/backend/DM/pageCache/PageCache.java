@@ -2,6 +2,7 @@ package com.whut.database.backend.DM.pageCache;
 
 
 import com.whut.database.backend.DM.page.Page;
+import com.whut.database.backend.common.ReplacementPolicy;
 import com.whut.database.backend.utils.Panic;
 import com.whut.database.common.Error;
 
@@ -9,6 +10,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.function.LongConsumer;
 
 /*
     页缓存
@@ -21,6 +24,14 @@ public interface PageCache {
 
     String DB_SUFFIX = ".db";
 
+    // 页缓存模式：heap每次加载分配页数组，pool复用预先分配的页帧，mmap从文件映射中读取页
+    String MODE_HEAP = "heap";
+    String MODE_POOL = "pool";
+    String MODE_MMAP = "mmap";
+
+    // 默认的替换策略，其他取值见 ReplacementPolicy.newPolicy
+    String POLICY_CLOCK = ReplacementPolicy.CLOCK;
+
     int newPage(byte[] initData);
 
     Page getPage(int pgno) throws Exception;
@@ -35,11 +46,28 @@ public interface PageCache {
 
     void flushPage(Page pg); // 刷新页
 
+    Map<Integer, Long> flushBefore(long lsn); // 写回在 lsn 之前变脏的页（包括正在被引用的页）并落盘，返回剩下的脏页及其 recLsn
+
+    void setLogFlusher(LongConsumer logFlusher); // 写回页之前让日志落盘到页的LSN
+
+    void prefetch(int pgno, int count); // 预读从pgno开始的count页，不持有引用
+
+    boolean tryOccupy(Page pg); // 只有调用者引用该页时独占该页，其他线程获取该页需要等待
+    void unoccupy(Page pg); // 结束独占
+
 
     /*
         创建数据库缓存
      */
-    static PageCacheImpl create(String path,long memory){
+    static PageCache create(String path,long memory){
+        return create(path, memory, MODE_HEAP);
+    }
+
+    static PageCache create(String path, long memory, String mode){
+        return create(path, memory, mode, POLICY_CLOCK);
+    }
+
+    static PageCache create(String path, long memory, String mode, String policy){
         File file = new File(path + DB_SUFFIX);
         try {
             if(!file.createNewFile()) Panic.panic(Error.FileExistsException);
@@ -57,13 +85,21 @@ public interface PageCache {
             Panic.panic(e);
         }
 
-        return new PageCacheImpl(raf,fc,(int)(memory / PAGE_SIZE));
+        return PageCacheImpl.newPageCache(raf, fc, memory, mode, policy);
     }
 
     /*
         打开数据库缓存
      */
-    static PageCacheImpl open(String path, long memory){
+    static PageCache open(String path, long memory){
+        return open(path, memory, MODE_HEAP);
+    }
+
+    static PageCache open(String path, long memory, String mode){
+        return open(path, memory, mode, POLICY_CLOCK);
+    }
+
+    static PageCache open(String path, long memory, String mode, String policy){
         File file = new File(path + DB_SUFFIX);
         if(!file.exists()) Panic.panic(Error.FileNotExistsException);
         if (!file.canRead() || ! file.canWrite()) Panic.panic(Error.FileCannotRWException);
@@ -77,7 +113,7 @@ public interface PageCache {
             Panic.panic(e);
         }
 
-        return new PageCacheImpl(raf,fc,(int)(memory / PAGE_SIZE));
+        return PageCacheImpl.newPageCache(raf, fc, memory, mode, policy);
     }
 
 }
@@ -3,6 +3,8 @@ package com.whut.database.backend.DM.pageCache;
 import com.whut.database.backend.DM.page.Page;
 import com.whut.database.backend.DM.page.PageImpl;
 import com.whut.database.backend.common.AbstractCache;
+import com.whut.database.backend.common.ClockPolicy;
+import com.whut.database.backend.common.ReplacementPolicy;
 import com.whut.database.backend.utils.Panic;
 import com.whut.database.common.Error;
 
@@ -10,26 +12,81 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
 
 
 /*
     页缓存的实现
+    没有引用的页继续留在缓存中，缓存满时由替换策略（默认CLOCK）选出被淘汰的页
+    pool模式下页数据使用页帧池中预先分配的页帧，被淘汰的页归还页帧
+
+    脏页由后台写回线程批量写回：每一轮收集没有被引用的脏页，按页号排序后把页号连续的页拼接后一次写回，
+    整批只fsync一次。只写回没有被引用的页，拷贝时页上不会有正在进行的修改
+    淘汰脏页和新建页时只写入文件不fsync，由后台线程下一轮统一fsync，
+    数据库文件中没有fsync的页在崩溃后由日志恢复；flushPage 仍然同步写回并fsync
+    检查点通过 flushBefore 写回较早变脏的页：写回脏页时持有写回锁的读锁，flushBefore 持有写锁，
+    flushBefore 返回时，之前被清除脏页标志的页（后台写回、淘汰）也都已经落盘，没有返回的页都是干净的
+    先写日志：写回页之前通过 logFlusher 让日志落盘到页的LSN，后台写回时整批只落盘一次日志
+    连续缺页（顺序扫描）时预读后面的 READ_AHEAD 页，也可以通过 prefetch 显式预读，
+    预读的页用一次读取加载进缓存，不持有引用，缓存满时只淘汰没有引用的页
+    所有读写都按位置进行，不修改文件通道的位置，也不持有全局锁，多个线程的缓存未命中可以同时到达磁盘
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final int MEN_MIN_LIM = 10; // 最小缓存限制
+    private static final int FLUSH_BATCH = 64; // 每轮最多写回的页数
+    private static final long FLUSH_INTERVAL = 100; // 后台写回的间隔（毫秒）
+    private static final int READ_AHEAD = 32; // 顺序扫描时每次预读的页数
+    private static final int SEQ_TRIGGER = 2; // 连续缺页达到该次数后开始预读
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock fileLock;
-    private AtomicInteger pageNumber;
+    private AtomicInteger pageNumber; // 已经写入文件的页数
+    private Lock newPageLock; // 新建页的锁
+    private final FramePool pool; // 页帧池，为null时每次加载分配新的页数组
+    private Lock readAheadLock; // 预读使用文件通道的位置做分散读取，同一时间只有一次预读
+
+    private Thread flusher; // 后台写回线程
+    private volatile boolean closed;
+    private volatile boolean unsynced; // 有写入文件但还没有fsync的页
+    private ByteBuffer[] staging; // 后台写回时页数据的拷贝，每页一个
+    private ByteBuffer runBuffer; // 页号连续的一段页按顺序拼接后一次写回
+    private long[] batch; // 本轮写回的页：高32位为页号，低32位为拷贝的下标
+    private int batchSize;
+    private ReadWriteLock writeBackLock; // 写回锁
+    private volatile LongConsumer logFlusher; // 让日志落盘到指定的LSN，没有日志时什么也不做
+
+    private int readAhead; // 每次预读的页数，不超过缓存大小的1/4
+    private volatile int lastMiss; // 上一次缺页的页号
+    private volatile int readAheadEnd; // 上一次预读的最后一页
+    private volatile int streak; // 连续缺页的次数
 
 
     public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource){
-        super(maxResource);
+        this(file, fc, maxResource, new ClockPolicy(Math.max(maxResource, MEN_MIN_LIM)));
+    }
+
+    public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, ReplacementPolicy policy){
+        this(file, fc, maxResource, policy, null);
+    }
+
+    /*
+        pool不为null时页数据使用页帧池中的页帧；后台写回线程在所有字段初始化之后才启动
+     */
+    public PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, ReplacementPolicy policy, FramePool pool){
+        super(maxResource, policy);
         // 缓存太小
         if (maxResource < MEN_MIN_LIM){
             Panic.panic(Error.MemTooSmallException);
@@ -44,10 +101,52 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
         this.file = file;
         this.fc = fc;
-        this.fileLock = new ReentrantLock();
+        this.pool = pool;
+        this.readAhead = Math.min(READ_AHEAD, maxResource / 4);
+        this.readAheadLock = new ReentrantLock();
 
         // 当前文件已经有的页数
-        this.pageNumber = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumber = new AtomicInteger((int)(length / PAGE_SIZE));
+        this.newPageLock = new ReentrantLock();
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(FLUSH_BATCH * PAGE_SIZE);
+        this.staging = new ByteBuffer[FLUSH_BATCH];
+        for(int i = 0; i < FLUSH_BATCH; i++){
+            buf.limit((i + 1) * PAGE_SIZE).position(i * PAGE_SIZE);
+            staging[i] = buf.slice();
+        }
+        this.batch = new long[FLUSH_BATCH];
+        this.runBuffer = ByteBuffer.allocateDirect(FLUSH_BATCH * PAGE_SIZE);
+        this.writeBackLock = new ReentrantReadWriteLock();
+        this.logFlusher = lsn -> {};
+
+        this.flusher = new Thread(this::flushLoop, "page-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /*
+        根据缓存模式和替换策略的名称创建页缓存
+     */
+    static PageCacheImpl newPageCache(RandomAccessFile file, FileChannel fc, long memory, String mode, String policyName){
+        int maxResource = (int)(memory / PAGE_SIZE);
+        ReplacementPolicy policy = null;
+        try {
+            policy = ReplacementPolicy.newPolicy(policyName, Math.max(maxResource, MEN_MIN_LIM));
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+
+        if (mode == null || MODE_HEAP.equals(mode)){
+            return new PageCacheImpl(file, fc, maxResource, policy);
+        }else if (MODE_POOL.equals(mode)){
+            if (maxResource < MEN_MIN_LIM) Panic.panic(Error.MemTooSmallException);
+            return new PageCacheImpl(file, fc, maxResource, policy, new FramePool(maxResource));
+        }else if (MODE_MMAP.equals(mode)){
+            return new MmapPageCacheImpl(file, fc, maxResource, policy);
+        }
+        Panic.panic(Error.InvalidCacheModeException);
+        return null;
     }
 
 
@@ -58,37 +157,139 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         int pgNo = (int) key;
         long offset = pageOffset(pgNo);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        // 直接读进页帧，不再额外分配和拷贝
+        byte[] data = pool == null ? new byte[PAGE_SIZE] : pool.allocate();
+        int n = read(offset, data);
+        // 读到文件末尾时，复用的页帧中可能残留其他页的数据
+        Arrays.fill(data, n, PAGE_SIZE, (byte) 0);
+
+        // 顺序扫描时预读后面的页
+        if (sequential(pgNo)){
+            readAheadEnd = pgNo + readAhead;
+            prefetch(pgNo + 1, readAhead);
+        }
+
+        return new PageImpl(pgNo,data,this);
+    }
+
+    /*
+        批量读取页：页号连续的页用一次分散读取直接读进各自的页帧
+     */
+    @Override
+    protected List<Page> getForCache(List<Long> keys) throws Exception {
+        List<Page> pages = new ArrayList<>(keys.size());
+        for(int i = 0, j; i < keys.size(); i = j){
+            j = i + 1;
+            while (j < keys.size() && keys.get(j) == keys.get(j - 1) + 1) j++;
+
+            int first = (int)(long) keys.get(i);
+            byte[][] frames = new byte[j - i][];
+            ByteBuffer[] bufs = new ByteBuffer[j - i];
+            for(int k = 0; k < j - i; k++){
+                frames[k] = pool == null ? new byte[PAGE_SIZE] : pool.allocate();
+                bufs[k] = ByteBuffer.wrap(frames[k]);
+            }
+            read(pageOffset(first), bufs);
+            for(int k = 0; k < j - i; k++){
+                // 读到文件末尾时，复用的页帧中可能残留其他页的数据
+                Arrays.fill(frames[k], bufs[k].position(), PAGE_SIZE, (byte) 0);
+                pages.add(new PageImpl(first + k, frames[k], this));
+            }
+        }
+        return pages;
+    }
+
+    /*
+        从文件的offset处分散读取到多个缓冲区
+        分散读取只能从文件通道的位置开始，按位置进行的读写不使用该位置，不受影响
+     */
+    private void read(long offset, ByteBuffer[] bufs){
+        ByteBuffer last = bufs[bufs.length - 1];
+        readAheadLock.lock();
         try{
             fc.position(offset);
-            fc.read(buf);
+            while (last.hasRemaining() && fc.read(bufs) >= 0);
         }catch (IOException e){
             Panic.panic(e);
         }finally {
-            fileLock.unlock();
+            readAheadLock.unlock();
         }
+    }
 
-        return new PageImpl(pgNo,buf.array(),this);
+    /*
+        判断是否在顺序扫描：本次缺页紧跟上一次缺页，或者落在上一次预读的范围内（缓存满时预读的页可能没有加载）
+     */
+    private boolean sequential(int pgno){
+        if (readAhead <= 0) return false;
+        int last = lastMiss;
+        lastMiss = pgno;
+        boolean seq = pgno == last + 1 || (pgno > last && pgno <= readAheadEnd + 1);
+        streak = seq ? streak + 1 : 0;
+        return streak >= SEQ_TRIGGER;
+    }
+
+    // 预读从pgno开始的count页，超出文件的部分忽略
+    @Override
+    public void prefetch(int pgno, int count) {
+        int end = Math.min(pgno + count - 1, pageNumber.get());
+        if (pgno > end) return;
+
+        List<Long> keys = new ArrayList<>(end - pgno + 1);
+        for(int i = pgno; i <= end; i++){
+            keys.add((long) i);
+        }
+        try {
+            preload(keys);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    /*
+        从文件的offset处读取一页数据，返回实际读取的字节数
+     */
+    protected int read(long offset, byte[] data){
+        // 按位置读取，不修改文件通道的位置，多个线程的读取可以并行
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try{
+            while (buf.hasRemaining() && fc.read(buf, offset + buf.position()) >= 0);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        return buf.position();
     }
 
     @Override
     protected void releaseForCache(Page pg) {
-        // 是脏页的话 刷新进数据库文件
-        if (pg.isDirty()){
-            flush(pg);
-            pg.setDirty(false);
+        // 是脏页的话 写入数据库文件，由后台线程fsync
+        writeBackLock.readLock().lock();
+        try {
+            if (pg.isDirty()){
+                logFlusher.accept(pg.getLsn());
+                pg.setDirty(false);
+                write(pg);
+            }
+        }finally {
+            writeBackLock.readLock().unlock();
         }
+        // 页已经移出缓存，归还页帧
+        if (pool != null) pool.free(pg.getData());
     }
 
 
-    // 增加新的数据页
+    // 增加新的数据页：写入文件之后才增加页数，预读不会读到还没有写入的新页
     @Override
     public int newPage(byte[] initData) {
-        int pgNo = pageNumber.incrementAndGet();
-        Page pg = new PageImpl(pgNo,initData,null);
-        flushPage(pg);
-        return pgNo;
+        newPageLock.lock();
+        try {
+            int pgNo = pageNumber.get() + 1;
+            Page pg = new PageImpl(pgNo,initData,null);
+            write(pg);
+            pageNumber.set(pgNo);
+            return pgNo;
+        }finally {
+            newPageLock.unlock();
+        }
     }
 
     // 获取数据页
@@ -100,8 +301,17 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     // 关闭缓存
     @Override
     public void close() {
+        // 先停止后台写回，剩下的脏页在关闭缓存时写回
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         super.close();
         try {
+            fc.force(false);
             fc.close();
             file.close();
         }catch (IOException e){
@@ -115,6 +325,16 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         release(page.getPageNumber());
     }
 
+    @Override
+    public boolean tryOccupy(Page pg) {
+        return tryOccupy(pg.getPageNumber());
+    }
+
+    @Override
+    public void unoccupy(Page pg) {
+        unoccupy(pg.getPageNumber());
+    }
+
     // 截断该页后面的数据
     @Override
     public void truncateByBgno(int maxPgno) {
@@ -132,26 +352,141 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumber.intValue();
     }
 
-    // 刷新页
+    // 刷新页，返回时页数据已经落盘
     @Override
     public void flushPage(Page pg) {
-        flush(pg);
+        logFlusher.accept(pg.getLsn());
+        pg.setDirty(false);
+        write(pg);
+        sync();
+    }
+
+    /*
+        写回 recLsn 在 lsn 之前的脏页并落盘，返回剩下的脏页表（页号 -> recLsn），用于检查点
+        没有记录日志的修改（recLsn为0）总是被写回；lsn 为 Long.MAX_VALUE 时写回所有脏页，返回空表
+        正在被引用的页也会被写回，调用者需要保证页上没有正在进行的修改
+     */
+    @Override
+    public Map<Integer, Long> flushBefore(long lsn) {
+        Map<Integer, Long> dirtyPages = new HashMap<>();
+        writeBackLock.writeLock().lock();
+        try {
+            forEachLoaded(pg -> {
+                if (!pg.isDirty()) return;
+                long recLsn = pg.getRecLsn();
+                if (recLsn < lsn){
+                    logFlusher.accept(pg.getLsn());
+                    pg.setDirty(false);
+                    write(pg);
+                }else{
+                    dirtyPages.put(pg.getPageNumber(), recLsn);
+                }
+            });
+            sync();
+        }finally {
+            writeBackLock.writeLock().unlock();
+        }
+        return dirtyPages;
+    }
+
+    @Override
+    public void setLogFlusher(LongConsumer logFlusher) {
+        this.logFlusher = logFlusher;
+    }
+
+    /*
+        后台写回线程：没有写满一批时等待一段时间再写回下一轮
+     */
+    private void flushLoop(){
+        while (!closed){
+            int n;
+            writeBackLock.readLock().lock();
+            try {
+                n = flushDirtyPages();
+            }finally {
+                writeBackLock.readLock().unlock();
+            }
+            if (n < FLUSH_BATCH && !closed){
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL));
+            }
+        }
     }
 
-    private void flush(Page pg){
-        int pageNumber = pg.getPageNumber();
-        long offset = pageOffset(pageNumber);
+    /*
+        写回一批脏页，返回写回的页数
+        拷贝页数据时页被独占，拷贝后到写完之前一直持有页的引用，防止页被淘汰后读到旧数据
+     */
+    private int flushDirtyPages(){
+        batchSize = 0;
+        long[] maxLsn = new long[1];
+        acquireUnpinned(Page::isDirty, pg -> {
+            // 先清除脏页标志再拷贝，拷贝之后的修改会重新标记脏页
+            pg.setDirty(false);
+            ByteBuffer buf = staging[batchSize];
+            buf.clear();
+            buf.put(pg.getData());
+            buf.flip();
+            batch[batchSize] = ((long)pg.getPageNumber() << 32) | batchSize;
+            maxLsn[0] = Math.max(maxLsn[0], pg.getLsn());
+            batchSize ++;
+            return batchSize < FLUSH_BATCH;
+        });
+
+        int n = batchSize;
+        try {
+            if (n > 0) logFlusher.accept(maxLsn[0]);
+            Arrays.sort(batch, 0, n);
+            // 页号连续的页拼接起来一次写回
+            for(int i = 0, j; i < n; i = j){
+                j = i + 1;
+                while (j < n && pgno(batch[j]) == pgno(batch[j - 1]) + 1) j++;
 
-        fileLock.lock();
+                runBuffer.clear();
+                for(int k = i; k < j; k++){
+                    ByteBuffer page = staging[(int) batch[k]];
+                    page.rewind();
+                    runBuffer.put(page);
+                }
+                runBuffer.flip();
+                write(pageOffset(pgno(batch[i])), runBuffer);
+            }
+        }finally {
+            for(int i = 0; i < n; i++){
+                release(pgno(batch[i]));
+            }
+        }
+        if (n > 0 || unsynced) sync();
+        return n;
+    }
+
+    private static int pgno(long item){
+        return (int)(item >>> 32);
+    }
+
+    // 把页写入数据库文件，不fsync
+    private void write(Page pg){
+        write(pageOffset(pg.getPageNumber()), ByteBuffer.wrap(pg.getData()));
+    }
+
+    // 按位置写入，不修改文件通道的位置，多个线程的写入可以并行
+    private void write(long offset, ByteBuffer buf){
         try{
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
+            while (buf.hasRemaining()){
+                fc.write(buf, offset + buf.position());
+            }
         }catch (IOException e){
             Panic.panic(e);
-        }finally {
-            fileLock.unlock();
+        }
+        unsynced = true;
+    }
+
+    // 已经写入的页落盘
+    private void sync(){
+        unsynced = false;
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
         }
     }
 
@@ -159,8 +494,8 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         获取当前页在文件中的偏移量
         第一页特殊管理
      */
-    private static long pageOffset(int pgno){
-        return (pgno-1) * PAGE_SIZE;
+    protected static long pageOffset(int pgno){
+        return (long)(pgno-1) * PAGE_SIZE;
     }
 
 }
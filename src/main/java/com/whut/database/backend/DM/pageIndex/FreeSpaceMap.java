@@ -0,0 +1,151 @@
+package com.whut.database.backend.DM.pageIndex;
+
+import com.whut.database.backend.DM.page.Page;
+import com.whut.database.backend.DM.page.PageFsm;
+import com.whut.database.backend.DM.page.PageOne;
+import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.utils.Panic;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/*
+    空闲空间表：把每一页的空闲空间持久化到空闲空间表页中，启动时只读取这些页就能建立页面索引
+
+    空闲空间表页组成一条链，链头记录在第一页中，需要记录更大的页号时在链尾追加新页
+    空闲空间表页和普通页一样通过页缓存读写，不记录日志：
+    正常关闭时和数据页一起写回；崩溃恢复之后空闲空间表可能和数据页不一致，丢弃后重新扫描所有页建立
+ */
+public class FreeSpaceMap {
+
+    private PageCache pc;
+    private Page pageOne;
+    private volatile int[] pages; // 空闲空间表页的页号，按链的顺序
+    private Deque<Integer> reusable; // 重建时可以复用的旧空闲空间表页
+
+    private FreeSpaceMap(PageCache pc, Page pageOne) {
+        this.pc = pc;
+        this.pageOne = pageOne;
+        this.reusable = new ArrayDeque<>();
+        this.pages = new int[0];
+    }
+
+    /*
+        创建空的空闲空间表：新建数据库，或者崩溃恢复后丢弃原来的空闲空间表
+        原来的空闲空间表页可能已经被截断，不能再读取
+     */
+    public static FreeSpaceMap create(PageCache pc, Page pageOne){
+        PageOne.setFsm(pageOne, 0);
+        return new FreeSpaceMap(pc, pageOne);
+    }
+
+    /*
+        打开空闲空间表：读取空闲空间表页的链
+     */
+    public static FreeSpaceMap open(PageCache pc, Page pageOne){
+        FreeSpaceMap fsm = new FreeSpaceMap(pc, pageOne);
+        int pgno = PageOne.getFsm(pageOne);
+        while (pgno != 0){
+            fsm.pages = Arrays.copyOf(fsm.pages, fsm.pages.length + 1);
+            fsm.pages[fsm.pages.length - 1] = pgno;
+            Page pg = fsm.getPage(pgno);
+            pgno = PageFsm.getNext(pg);
+            pg.release();
+        }
+        return fsm;
+    }
+
+    /*
+        还没有空闲空间表（新建、旧版本的数据库文件或者被丢弃）
+     */
+    public boolean isEmpty(){
+        return pages.length == 0;
+    }
+
+    /*
+        重建时扫描到的旧空闲空间表页
+     */
+    public synchronized void reuse(int pgno){
+        reusable.add(pgno);
+    }
+
+    /*
+        把空闲空间表中的页加入页面索引，只读取空闲空间表页
+     */
+    public void load(PageIndex pageIndex){
+        int pageNumber = pc.getPageNumber();
+        int[] fsm = pages;
+        for(int k = 0; k < fsm.length; k++){
+            Page pg = getPage(fsm[k]);
+            try {
+                for(int i = 0; i < PageFsm.ENTRIES; i++){
+                    int pgno = k * PageFsm.ENTRIES + i + 1;
+                    if (pgno > pageNumber) break;
+                    int freeSpace = PageFsm.getFreeSpace(pg, i);
+                    if (freeSpace > 0) pageIndex.add(pgno, freeSpace);
+                }
+            }finally {
+                pg.release();
+            }
+        }
+    }
+
+    /*
+        更新一页的空闲空间
+     */
+    public void update(int pgno, int freeSpace){
+        int k = (pgno - 1) / PageFsm.ENTRIES;
+        int[] fsm = pages;
+        if (k >= fsm.length) fsm = extend(k);
+
+        Page pg = getPage(fsm[k]);
+        try {
+            PageFsm.setFreeSpace(pg, (pgno - 1) % PageFsm.ENTRIES, freeSpace);
+        }finally {
+            pg.release();
+        }
+    }
+
+    /*
+        在链尾追加空闲空间表页，直到能够记录第 k 个空闲空间表页对应的页
+     */
+    private synchronized int[] extend(int k){
+        while (pages.length <= k){
+            int pgno;
+            if (reusable.isEmpty()){
+                pgno = pc.newPage(PageFsm.initRaw());
+            }else{
+                pgno = reusable.poll();
+                Page pg = getPage(pgno);
+                pg.setDirty(true);
+                System.arraycopy(PageFsm.initRaw(), 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+                pg.release();
+            }
+
+            if (pages.length == 0){
+                PageOne.setFsm(pageOne, pgno);
+            }else{
+                Page last = getPage(pages[pages.length - 1]);
+                PageFsm.setNext(last, pgno);
+                last.release();
+            }
+
+            int[] newPages = Arrays.copyOf(pages, pages.length + 1);
+            newPages[pages.length] = pgno;
+            pages = newPages;
+        }
+        return pages;
+    }
+
+    private Page getPage(int pgno){
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return pg;
+    }
+
+}
@@ -2,28 +2,31 @@ package com.whut.database.backend.DM.pageIndex;
 
 import com.whut.database.backend.DM.pageCache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /*
     页面索引：缓存每一页的空闲空间，提供给上层使用，完成快速插入操作
+
+    按空闲空间分成多个区间，每个区间是一个无锁队列，不同区间、同一区间的并发操作都不需要加锁
+    每个页同一时刻最多被一个线程取出：取出时通过 PageInfo 的标志抢占，
+    被 remove 抢先取出的页在队列中成为失效项，select 遇到时直接丢弃，所以 remove 是O(1)的
  */
 public class PageIndex {
 
     private static final int INTERVALS_NO = 40;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private List<PageInfo>[] lists; // 存储页面索引
-    private Lock lock;
+    private Queue<PageInfo>[] lists; // 存储页面索引
+    private ConcurrentHashMap<Integer, PageInfo> pages; // 在索引中的页
 
     @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+        pages = new ConcurrentHashMap<>();
+        lists = new Queue[INTERVALS_NO+1];
         for(int i = 0; i <= INTERVALS_NO; i++){
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedQueue<>();
         }
     }
 
@@ -31,35 +34,40 @@ public class PageIndex {
         写完页面后，重新加入页面索引
      */
     public void add(int pgno, int freeSpace){
-        lock.lock();
-        try{
-            int idx = freeSpace / THRESHOLD;
-            lists[idx].add(new PageInfo(pgno, freeSpace));
-        }finally {
-            lock.unlock();
-        }
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        PageInfo old = pages.put(pgno, pi);
+        if (old != null) old.claim(); // 同一页只保留最新的记录
+        int idx = Math.min(freeSpace / THRESHOLD, INTERVALS_NO);
+        lists[idx].offer(pi);
     }
 
     /*
         获取页面，对于同一个页，不允许并发写操作
      */
     public PageInfo select(int spaceSize){
-        lock.lock();
-        try{
-            int idx = spaceSize / THRESHOLD;
-            if (idx < INTERVALS_NO) idx++; // 向上取整
-            while (idx <= INTERVALS_NO){
-                if (lists[idx].size()  == 0){
-                    idx++;
-                    continue;
-                }
-                return lists[idx].remove(0);
+        int idx = spaceSize / THRESHOLD;
+        if (idx < INTERVALS_NO) idx++; // 向上取整
+        while (idx <= INTERVALS_NO){
+            PageInfo pi = lists[idx].poll();
+            if (pi == null){
+                idx++;
+                continue;
+            }
+            if (pi.claim()){
+                pages.remove(pi.pgno, pi);
+                return pi;
             }
-            return null;
-        }finally {
-            lock.unlock();
         }
+        return null;
     }
 
+    /*
+        把指定的页从索引中取出，页不在索引中（已经被其他线程取出）时返回null
+     */
+    public PageInfo remove(int pgno){
+        PageInfo pi = pages.remove(pgno);
+        if (pi == null || !pi.claim()) return null;
+        return pi;
+    }
 
 }
@@ -1,5 +1,7 @@
 package com.whut.database.backend.DM.pageIndex;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /*
     页信息
  */
@@ -7,10 +9,19 @@ public class PageInfo {
 
     public int pgno;
     public int freeSpace;
+    private AtomicBoolean claimed; // 是否已经从页面索引中取出
 
     public PageInfo(int pgno, int freeSpace) {
         this.pgno = pgno;
         this.freeSpace = freeSpace;
+        this.claimed = new AtomicBoolean();
+    }
+
+    /*
+        从页面索引中取出该页，只有一个线程能够成功
+     */
+    boolean claim(){
+        return claimed.compareAndSet(false, true);
     }
 
 }
@@ -3,6 +3,7 @@ package com.whut.database.backend.IM;
 import com.whut.database.backend.DM.DataManager;
 import com.whut.database.backend.DM.dataItem.DataItem;
 import com.whut.database.backend.IM.Node.InsertAndSplitRes;
+import com.whut.database.backend.IM.Node.LeafDeleteRes;
 import com.whut.database.backend.IM.Node.LeafSearchRangeRes;
 import com.whut.database.backend.IM.Node.SearchNextRes;
 import com.whut.database.backend.TM.TransactionManagerImpl;
@@ -101,7 +102,7 @@ public class BPlusTree {
      */
     private long searchNext(long nodeUid,long key) throws Exception{
         while (true){
-            Node node = Node.loadNode(this, key);
+            Node node = Node.loadNode(this, nodeUid);
             SearchNextRes res = node.searchNext(key);
             node.release();
 
@@ -111,6 +112,14 @@ public class BPlusTree {
     }
 
 
+    /*
+        可能包含key的第一个叶子节点
+        相同的key可能分布在分裂前后的两个叶子节点中，从key-1所在的叶子节点开始，之后向右查找
+     */
+    private long searchFirstLeaf(long key) throws Exception{
+        return searchLeaf(getRootUid(), key == Long.MIN_VALUE ? key : key - 1);
+    }
+
     public List<Long> search(long key) throws Exception{
         return searchRange(key,key);
     }
@@ -119,8 +128,7 @@ public class BPlusTree {
         范围查询
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = getRootUid();
-        long leafUid = searchLeaf(rootUid,leftKey);
+        long leafUid = searchFirstLeaf(leftKey);
         List<Long> uids = new ArrayList<>();
 
         /*
@@ -140,6 +148,41 @@ public class BPlusTree {
     }
 
 
+    /*
+        遍历整个索引的游标，不会把所有uid一次读到内存中
+     */
+    public Cursor cursor() throws Exception{
+        return new Cursor(searchFirstLeaf(Long.MIN_VALUE));
+    }
+
+    /*
+        叶子节点游标：每次返回一个叶子节点中的uid，沿着兄弟节点向右遍历，只记录下一个叶子节点
+        遍历期间当前叶子分裂出的节点在它和下一个叶子之间，其中原有的uid已经在这一批中返回
+     */
+    public class Cursor {
+        private long leafUid; // 下一个叶子节点，0表示遍历结束
+
+        private Cursor(long leafUid) {
+            this.leafUid = leafUid;
+        }
+
+        /*
+            下一个不为空的叶子节点中的uid，遍历结束时返回null
+         */
+        public List<Long> next() throws Exception{
+            while (leafUid != 0){
+                Node leaf = Node.loadNode(BPlusTree.this, leafUid);
+                LeafSearchRangeRes res = leaf.leafSearchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+                leaf.release();
+
+                leafUid = res.siblingUid;
+                if (!res.uids.isEmpty()) return res.uids;
+            }
+            return null;
+        }
+    }
+
+
     class InsertRes{
         long newNodeId;
         long newKey;
@@ -196,6 +239,23 @@ public class BPlusTree {
         }
     }
 
+    /*
+        删除一个节点，返回是否找到
+     */
+    public boolean delete(long key, long uid) throws Exception{
+        long leafUid = searchFirstLeaf(key);
+
+        while (true){
+            Node leaf = Node.loadNode(this,leafUid);
+            LeafDeleteRes res = leaf.leafDelete(key, uid);
+            leaf.release();
+
+            if (res.deleted) return true;
+            if (res.siblingUid == 0) return false;
+            leafUid = res.siblingUid;
+        }
+    }
+
     public void close(){
         bootDataItem.release();
     }
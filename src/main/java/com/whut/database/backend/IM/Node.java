@@ -67,7 +67,7 @@ public class Node {
         设置兄弟节点的uid
      */
     static void setRawSibling(SubArray raw, long sibling){
-        System.arraycopy(Parser.long2Byte(sibling),0,raw.raw,raw.start + SIBLING_OFFSET,raw.start + NODE_HEADER_SIZE - SIBLING_OFFSET);
+        System.arraycopy(Parser.long2Byte(sibling),0,raw.raw,raw.start + SIBLING_OFFSET,NODE_HEADER_SIZE - SIBLING_OFFSET);
     }
 
     /*
@@ -128,6 +128,15 @@ public class Node {
         }
     }
 
+    /*
+        删除第k个子节点，后面的子节点前移
+     */
+    static void removeRawKth(SubArray raw, int kth, int noKeys){
+        int begin = raw.start + NODE_HEADER_SIZE + kth*(8*2);
+        int end = raw.start + NODE_HEADER_SIZE + noKeys*(8*2);
+        System.arraycopy(raw.raw, begin + 8*2, raw.raw, begin, end - begin - 8*2);
+    }
+
     /*
         生成一个新的根节点
      */
@@ -351,14 +360,57 @@ public class Node {
         // 当前位置不能再插入节点
         if (kth == noKeys && getRawSibling(raw) != 0) return false;
 
-        shiftRawKth(raw,kth);
-        setRawKthSon(raw,uid,kth);
-        setRawKthKey(raw,key,kth);
+        if (getRawIsLeaf(raw)){
+            shiftRawKth(raw,kth);
+            setRawKthSon(raw,uid,kth);
+            setRawKthKey(raw,key,kth);
+        }else{
+            /*
+                内部节点插入的是子节点分裂出的新节点：第k个子节点只保留小于key的部分，
+                新节点接管原来的上界，放在第k+1个位置
+             */
+            long kk = getRawKthKey(raw,kth);
+            setRawKthKey(raw,key,kth);
+            shiftRawKth(raw,kth+1);
+            setRawKthKey(raw,kk,kth+1);
+            setRawKthSon(raw,uid,kth+1);
+        }
         setRawNoKeys(raw,noKeys+1);
 
         return true;
     }
 
+    class LeafDeleteRes {
+        boolean deleted; // 是否删除成功
+        long siblingUid; // 没有找到，并且兄弟节点中可能还有该key时为兄弟节点的uid
+    }
+
+    /*
+        删除叶子节点中的 (key, uid)，节点变空时不合并，查询和插入会继续去兄弟节点
+     */
+    public LeafDeleteRes leafDelete(long key, long uid){
+        LeafDeleteRes res = new LeafDeleteRes();
+
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            for(int kth = 0; kth < noKeys; kth++){
+                long ik = getRawKthKey(raw,kth);
+                if (ik > key) return res;
+                if (ik == key && getRawKthSon(raw,kth) == uid){
+                    removeRawKth(raw,kth,noKeys);
+                    setRawNoKeys(raw,noKeys-1);
+                    res.deleted = true;
+                    return res;
+                }
+            }
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        }finally {
+            if (res.deleted) dataItem.after(TransactionManagerImpl.SUPER_XID);
+            else dataItem.unBefore();
+        }
+    }
 
     @Override
     public String toString() {
@@ -1,6 +1,7 @@
 package com.whut.database.backend;
 
 import com.whut.database.backend.DM.DataManager;
+import com.whut.database.backend.DM.pageCache.PageCache;
 import com.whut.database.backend.TM.TransactionManager;
 import com.whut.database.backend.Tbm.TableManager;
 import com.whut.database.backend.VM.VersionManager;
@@ -31,11 +32,16 @@ public class Launcher {
         options.addOption("open",true,"-open DBPath");
         options.addOption("create",true,"-create DBPath");
         options.addOption("mem",true,"-mem 64MB");
+        options.addOption("cache",true,"-cache heap|pool|mmap");
+        options.addOption("policy",true,"-policy clock|lru|lru2");
+        options.addOption("affinity",false,"-affinity");
+        options.addOption("redo",true,"-redo 4");
+        options.addOption("walcommit",false,"-walcommit");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("open")){
-            openDB(cmd.getOptionValue("open"),parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"),parseMem(cmd.getOptionValue("mem")),cmd.getOptionValue("cache",PageCache.MODE_HEAP),cmd.getOptionValue("policy",PageCache.POLICY_CLOCK),cmd.hasOption("affinity"),Integer.parseInt(cmd.getOptionValue("redo","1")),cmd.hasOption("walcommit"));
         }else if (cmd.hasOption("create")){
             createDB(cmd.getOptionValue("create"));
         }else{
@@ -51,16 +57,18 @@ public class Launcher {
         DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
         VersionManager vm = new VersionManagerImpl(tm,dm);
         TableManager.create(path,vm,dm);
+        dm.close(); // 关闭时的检查点需要事务状态落盘，先关闭DM
         tm.close();
-        dm.close();
     }
 
     /*
         打开数据库
      */
-    private static void openDB(String path, long mem){
+    private static void openDB(String path, long mem, String cacheMode, String policy, boolean affinity, int redoThreads, boolean walCommit){
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, cacheMode, policy, redoThreads);
+        dm.setInsertAffinity(affinity);
+        dm.setCommitLogged(walCommit);
         VersionManager vm = new VersionManagerImpl(tm,dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port,tbm).start();
@@ -17,7 +17,7 @@ import com.whut.database.common.Error;
  */
 public interface TransactionManager {
 
-    // XID文件头长度：用来记录管理事务的个数
+    // 旧格式的XID文件头长度：用来记录管理事务的个数，新格式见 TransactionManagerImpl
     int XID_HEADER_LENGTH = 8;
 
     // 每个事务的占用长度
@@ -28,7 +28,7 @@ public interface TransactionManager {
     byte FIELD_TRAN_COMMITTED = 1;
     byte FIELD_TRAN_ABORTED = 2;
 
-    // 超级事务，默认为commited状态
+    // 超级事务，默认为commited状态，冻结的记录由超级事务创建
     long SUPER_XID = 0;
 
     // 文件的后缀名
@@ -48,6 +48,14 @@ public interface TransactionManager {
 
     boolean isAborted(long xid); // 检查事务是否在取消状态
 
+    void setDeferSync(boolean deferSync); // 提交和取消记录在日志中时，状态的修改写入xid文件但不立即落盘
+
+    void sync(); // 已经修改的状态落盘，删除包含提交和取消日志的日志段之前调用
+
+    long nextXid(); // 下一个开启的事务
+
+    void truncate(long xid); // xid 之前的事务都已经冻结：都视为已提交，不再保存状态
+
 
     // 创建事务管理器
     static TransactionManager create(String path){
@@ -73,7 +81,7 @@ public interface TransactionManager {
         }
 
         // 写XID文件头
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_HEADER_LENGTH]);
+        ByteBuffer buf = ByteBuffer.wrap(TransactionManagerImpl.header());
         try {
             fc.position(0);
             fc.write(buf);
@@ -91,6 +99,9 @@ public interface TransactionManager {
         if(!file.exists()) Panic.panic(Error.FileNotExistsException);
         if(!file.canRead() || !file.canWrite()) Panic.panic(Error.FileCannotRWException);
 
+        // 转换旧格式的文件，丢弃冻结的事务状态
+        TransactionManagerImpl.compact(path);
+
         RandomAccessFile raf = null;
         FileChannel fc = null;
 
@@ -4,15 +4,53 @@ import com.whut.database.backend.utils.Panic;
 import com.whut.database.backend.utils.Parser;
 import com.whut.database.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/*
+    事务管理器的实现
+    事务的状态在打开时全部读入内存中的状态表，查询状态只读状态表；修改状态时先写入xid文件并落盘，再更新状态表
+    xid文件的读写都按位置进行，不修改文件通道的位置，多个线程可以同时提交
+
+    预分配：xid文件每次扩展 XID_PREALLOCATE 个事务，状态先写为取消并落盘，再更新文件头中的事务个数
+    开启事务只在内存中递增计数器，不写xid文件；用完当前范围时才再分配一段
+    已经分配但是没有提交的事务（包括崩溃时还在进行的事务）在文件中都是取消状态，
+    重新打开时从文件头记录的事务个数之后继续分配，不会复用这些xid
+
+    延迟落盘（deferSync）：提交和取消记录在日志中时，修改状态只写入文件，由检查点调用 sync 落盘，
+    崩溃时丢失的状态在恢复时根据日志重建
+
+    冻结：FrozenXid 之前的事务都已经结束，引用它们的记录都已经冻结（见 VersionManagerImpl.horizon），
+    这些事务都视为已提交，状态不再读入内存；打开时如果冻结的部分足够大，重写文件丢弃这部分状态
+
+    xid文件格式：[Magic] [XidCount] [FrozenXid] [FirstXid] [Status...]
+    Magic 为负数，与旧格式（文件头只有非负的 XidCount，状态从事务1开始）区分，旧格式的文件在打开时转换
+    FirstXid 是文件中记录状态的第一个事务
+ */
 public class TransactionManagerImpl implements TransactionManager {
 
+    private static final int LOAD_BUFFER_SIZE = 1 << 16; // 打开时每次读取的状态字节数
+    private static final int XID_PREALLOCATE = 4096; // 每次预分配的事务个数
+    private static final long COMPACT_THRESHOLD = 1 << 20; // 冻结的状态超过该个数时，打开时重写文件
+
+    private static final long XID_MAGIC = -1;
+    private static final int OF_MAGIC = 0;
+    private static final int OF_COUNT = OF_MAGIC + 8;
+    private static final int OF_FROZEN = OF_COUNT + 8;
+    private static final int OF_FIRST = OF_FROZEN + 8;
+    private static final int HEADER_LENGTH = OF_FIRST + 8;
+
+    private static final String XID_TMP_SUFFIX = ".xid_tmp";
+
     /*
     // XID文件头长度：用来记录管理事务的个数
     public static final int XID_HEADER_LENGTH = 8;
@@ -32,19 +70,87 @@ public class TransactionManagerImpl implements TransactionManager {
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock lock;
-    private long xidCount; // 管理的事务个数
+    private Lock lock; // 分配xid的锁
+    private volatile long xidCount; // xid文件中已经分配的事务个数
+    private volatile long frozenXid; // 之前的事务都已经冻结
+    private long firstXid; // 文件中记录状态的第一个事务
+    private AtomicLong nextXid; // 下一个开启的事务
+    private XidStatusTable statusTable; // 内存中的事务状态
+    private volatile boolean deferSync; // 修改状态时不立即落盘
 
     public TransactionManagerImpl(RandomAccessFile file, FileChannel fc) {
         this.file = file;
         this.fc = fc;
         lock = new ReentrantLock();
+        statusTable = new XidStatusTable();
         checkXIDCount();
+        loadStatus();
+        nextXid = new AtomicLong(xidCount + 1);
+    }
+
+    /*
+        新建的xid文件头：没有事务，也没有冻结的事务
+     */
+    static byte[] header(){
+        return header(0, 1, 1);
+    }
+
+    private static byte[] header(long xidCount, long frozenXid, long firstXid){
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+        buf.putLong(XID_MAGIC).putLong(xidCount).putLong(frozenXid).putLong(firstXid);
+        return buf.array();
+    }
+
+    /*
+        打开之前整理xid文件：旧格式的文件转换为新格式，冻结的状态超过 COMPACT_THRESHOLD 时丢弃
+        先写临时文件并落盘，再通过重命名替换，崩溃时留下的临时文件在下一次打开时删除
+     */
+    static void compact(String path){
+        File file = new File(path + XID_SUFFIX);
+        File tmpFile = new File(path + XID_TMP_SUFFIX);
+        tmpFile.delete();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            FileChannel src = raf.getChannel();
+            if (raf.length() < XID_HEADER_LENGTH) Panic.panic(Error.BadXIDFileException);
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(HEADER_LENGTH, raf.length()));
+            src.read(buf, 0);
+
+            long xidCount, frozenXid, firstXid, headerLength;
+            if (buf.getLong(OF_MAGIC) != XID_MAGIC){
+                xidCount = buf.getLong(0);
+                frozenXid = firstXid = 1;
+                headerLength = XID_HEADER_LENGTH;
+            }else {
+                if (raf.length() < HEADER_LENGTH) Panic.panic(Error.BadXIDFileException);
+                xidCount = buf.getLong(OF_COUNT);
+                frozenXid = buf.getLong(OF_FROZEN);
+                firstXid = buf.getLong(OF_FIRST);
+                headerLength = HEADER_LENGTH;
+                if (frozenXid - firstXid < COMPACT_THRESHOLD) return;
+            }
+            long position = headerLength + (frozenXid - firstXid) * XID_FIELD_SIZE;
+            long length = (xidCount - frozenXid + 1) * XID_FIELD_SIZE;
+            if (position + length > raf.length()) Panic.panic(Error.BadXIDFileException);
+
+            try (RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw")){
+                FileChannel dst = tmp.getChannel();
+                dst.write(ByteBuffer.wrap(header(xidCount, frozenXid, frozenXid)));
+                for(long done = 0; done < length; ){
+                    done += src.transferTo(position + done, length - done, dst);
+                }
+                dst.force(false);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的xidcount，根据它计算文件的理论长度，对比实际长度
+     * 文件比理论长度长说明扩展之后、更新文件头之前崩溃，多出的部分没有被使用，截掉
      */
     private void checkXIDCount(){
         long fileLen = 0;
@@ -53,72 +159,123 @@ public class TransactionManagerImpl implements TransactionManager {
         } catch (IOException e) {
             Panic.panic(Error.BadXIDFileException);
         }
-        if (fileLen < XID_HEADER_LENGTH){
+        if (fileLen < HEADER_LENGTH){
+            Panic.panic(Error.BadXIDFileException);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+        read(buf, 0);
+        if (buf.getLong(OF_MAGIC) != XID_MAGIC) Panic.panic(Error.BadXIDFileException);
+
+        this.xidCount = buf.getLong(OF_COUNT);
+        this.frozenXid = buf.getLong(OF_FROZEN);
+        this.firstXid = buf.getLong(OF_FIRST);
+        if (firstXid < 1 || frozenXid < firstXid || frozenXid > xidCount + 1) Panic.panic(Error.BadXIDFileException);
+
+        long end = getXidPosition(xidCount+1);
+        if(end > fileLen){
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen){
+            try {
+                file.setLength(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /*
+        把没有冻结的事务的状态读入状态表，活跃状态为0，不需要设置
+     */
+    private void loadStatus(){
+        statusTable.truncate(frozenXid);
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+        for(long xid = frozenXid; xid <= xidCount; ){
+            buf.clear();
+            buf.limit((int) Math.min(LOAD_BUFFER_SIZE, xidCount - xid + 1));
+            read(buf, getXidPosition(xid));
+            byte[] raw = buf.array();
+            for(int i = 0; i < buf.limit(); i++, xid++){
+                if (raw[i] != FIELD_TRAN_ACTIVE) statusTable.set(xid, raw[i]);
+            }
+        }
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
+    // 从 position 处读满 buf
+    private void read(ByteBuffer buf, long position){
         try {
-            fc.position(0); // 找到文件的对应位置
-            fc.read(buf);
+            while (buf.hasRemaining()){
+                if (fc.read(buf, position + buf.position()) < 0) Panic.panic(Error.BadXIDFileException);
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+        buf.flip();
+    }
 
-        this.xidCount = Parser.parseLong(buf.array());
+    // 把 buf 写入 position 处并落盘
+    private void write(ByteBuffer buf, long position){
+        write(buf, position, true);
+    }
 
-        long end = getXidPosition(xidCount+1);
-        if(end != fileLen){
-            Panic.panic(Error.BadXIDFileException);
+    private void write(ByteBuffer buf, long position, boolean force){
+        try {
+            while (buf.hasRemaining()){
+                fc.write(buf, position + buf.position());
+            }
+            if (force) fc.force(false); // 刷新管道中的数据到磁盘
+        } catch (IOException e) {
+            Panic.panic(e);
         }
     }
 
     // 根据事务xid获取在xid文件中的位置
     private long getXidPosition(long xid){
         // 超级事务不需要记录状态
-        return XID_HEADER_LENGTH + (xid-1) * XID_FIELD_SIZE;
+        return HEADER_LENGTH + (xid - firstXid) * XID_FIELD_SIZE;
     }
 
-    // 开启事务
+    // 开启事务：xid已经分配时只递增计数器
     @Override
     public long begin() {
+        long xid = nextXid.getAndIncrement();
+        if (xid > xidCount) allocate(xid);
+        statusTable.set(xid, FIELD_TRAN_ACTIVE);
+        return xid;
+    }
+
+    /*
+        分配到xid为止：扩展的部分状态为取消，落盘之后再更新文件头
+     */
+    private void allocate(long xid){
         lock.lock();
         try{
-            long xid = xidCount + 1;
-            updateXID(xid,FIELD_TRAN_ACTIVE);
-            incrXIDCount();
-            return xid;
+            while (xidCount < xid){
+                byte[] raw = new byte[XID_PREALLOCATE * XID_FIELD_SIZE];
+                Arrays.fill(raw, FIELD_TRAN_ABORTED);
+                write(ByteBuffer.wrap(raw), getXidPosition(xidCount + 1));
+                incrXIDCount(XID_PREALLOCATE);
+            }
         }finally {
             lock.unlock();
         }
     }
 
-    // 更新xid事务的状态
+    // 更新xid事务的状态：写入文件之后其他事务才能看到新的状态，没有延迟落盘时先落盘
+    // 已经冻结的事务（恢复时重放的旧日志）不再记录状态
     private void updateXID(long xid, byte status){
-        long position = getXidPosition(xid);
+        if (xid < frozenXid) return;
         byte[] tmp = new byte[XID_FIELD_SIZE];
         tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
-        try {
-            fc.position(position);
-            fc.write(buf);
-            fc.force(false); // 刷新管道中的数据到磁盘
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        write(ByteBuffer.wrap(tmp), getXidPosition(xid), !deferSync);
+        statusTable.set(xid, status);
     }
 
-    // 将事务个数+1，并更新文件头
-    private void incrXIDCount(){
-        xidCount++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCount));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+    // 将事务个数增加count，文件头落盘之后其他线程才能使用新分配的xid
+    private void incrXIDCount(int count){
+        write(ByteBuffer.wrap(Parser.long2Byte(xidCount + count)), OF_COUNT);
+        xidCount += count;
     }
 
     @Override
@@ -140,7 +297,7 @@ public class TransactionManagerImpl implements TransactionManager {
 
     @Override
     public boolean isCommitted(long xid) {
-        if(xid == SUPER_XID) return false;
+        if(xid == SUPER_XID) return true;
         return checkXIDStatus(xid,FIELD_TRAN_COMMITTED);
     }
 
@@ -150,23 +307,51 @@ public class TransactionManagerImpl implements TransactionManager {
         return checkXIDStatus(xid,FIELD_TRAN_ABORTED);
     }
 
-    // 检查事务状态
+    // 检查事务状态：只读内存中的状态表
     public boolean checkXIDStatus(long xid, byte status){
-        long position = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+        return statusTable.get(xid) == status;
+    }
+
+    @Override
+    public long nextXid() {
+        return nextXid.get();
+    }
+
+    /*
+        冻结 xid 之前的事务：先把 FrozenXid 写入文件头并落盘，再截断状态表
+     */
+    @Override
+    public void truncate(long xid) {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
+            if (xid <= frozenXid) return;
+            if (xid > nextXid.get()) Panic.panic(Error.BadXIDFileException);
+            write(ByteBuffer.wrap(Parser.long2Byte(xid)), OF_FROZEN);
+            frozenXid = xid;
+            statusTable.truncate(xid);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setDeferSync(boolean deferSync) {
+        this.deferSync = deferSync;
+    }
+
+    @Override
+    public void sync() {
+        try {
+            fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-
-        return buf.array()[0] == status;
     }
 
     @Override
     public void close() {
         try {
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
@@ -0,0 +1,109 @@
+package com.whut.database.backend.TM;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    内存中的事务状态表
+
+    每个事务的状态占2位，取值与xid文件中的状态字节相同，按块分配，每块管理 CHUNK_SIZE 个事务
+    读取状态不加锁，也不做I/O；修改时对所在的long做CAS，同一个long中其他事务的状态不会被覆盖
+    只有分配新块时加锁，块数组整体替换，读取线程看到的总是完整的数组
+    还没有分配的事务状态为0（活跃），与读取xid文件末尾之后的数据一致
+    截断：frozen 之前的事务都已经冻结，视为已提交，完全位于它之前的块被丢弃
+ */
+public class XidStatusTable {
+
+    private static final int BITS = 2; // 每个事务占用的位数
+    private static final long MASK = (1L << BITS) - 1;
+    private static final int PER_LONG = Long.SIZE / BITS; // 每个long存放的事务数
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 每块管理的事务数
+
+    private volatile AtomicLongArray[] chunks;
+    private volatile long frozen; // 之前的事务都视为已提交
+    private Lock lock; // 分配新块的锁
+
+    public XidStatusTable() {
+        this.chunks = new AtomicLongArray[0];
+        this.lock = new ReentrantLock();
+    }
+
+    /*
+        获取事务的状态
+     */
+    public byte get(long xid){
+        if (xid < frozen) return TransactionManager.FIELD_TRAN_COMMITTED;
+        AtomicLongArray[] cs = chunks;
+        long c = xid >>> CHUNK_SHIFT;
+        if (c >= cs.length) return 0;
+        AtomicLongArray chunk = cs[(int) c];
+        // 读取 frozen 之后块被截断
+        if (chunk == null) return TransactionManager.FIELD_TRAN_COMMITTED;
+        int i = (int)(xid & (CHUNK_SIZE - 1));
+        long word = chunk.get(i / PER_LONG);
+        return (byte)((word >>> (i % PER_LONG * BITS)) & MASK);
+    }
+
+    /*
+        设置事务的状态
+     */
+    public void set(long xid, byte status){
+        if (xid < frozen) return; // 已经冻结的事务状态不会再改变
+        AtomicLongArray chunk = chunk(xid);
+        int i = (int)(xid & (CHUNK_SIZE - 1));
+        int index = i / PER_LONG;
+        int shift = i % PER_LONG * BITS;
+        while (true){
+            long old = chunk.get(index);
+            long word = (old & ~(MASK << shift)) | ((status & MASK) << shift);
+            if (old == word || chunk.compareAndSet(index, old, word)) return;
+        }
+    }
+
+    /*
+        获取事务所在的块，不存在时分配到该块为止
+     */
+    private AtomicLongArray chunk(long xid){
+        int c = (int)(xid >>> CHUNK_SHIFT);
+        AtomicLongArray[] cs = chunks;
+        if (c < cs.length) return cs[c];
+
+        lock.lock();
+        try {
+            cs = chunks;
+            if (c < cs.length) return cs[c];
+            AtomicLongArray[] grown = new AtomicLongArray[Math.max(c + 1, cs.length * 2)];
+            System.arraycopy(cs, 0, grown, 0, cs.length);
+            for(int k = Math.max(cs.length, (int)(frozen >>> CHUNK_SHIFT)); k < grown.length; k++){
+                grown[k] = new AtomicLongArray(CHUNK_SIZE / PER_LONG);
+            }
+            chunks = grown;
+            return grown[c];
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+        截断：xid 之前的事务都视为已提交，丢弃完全位于它之前的块
+     */
+    public void truncate(long xid){
+        lock.lock();
+        try {
+            if (xid <= frozen) return;
+            frozen = xid;
+            AtomicLongArray[] cs = chunks;
+            AtomicLongArray[] truncated = cs.clone();
+            int end = (int) Math.min(xid >>> CHUNK_SHIFT, cs.length);
+            for(int k = 0; k < end; k++){
+                truncated[k] = null;
+            }
+            chunks = truncated;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -178,6 +178,13 @@ public class Field {
         return raw;
     }
 
+    /*
+        从索引中删除记录
+     */
+    public void delete(Object key, long uid) throws Exception{
+        tree.delete(value2Uid(key),uid);
+    }
+
     /*
         范围查询
      */
@@ -185,6 +192,13 @@ public class Field {
         return tree.searchRange(left,right);
     }
 
+    /*
+        按叶子节点分批遍历索引中的所有记录
+     */
+    public BPlusTree.Cursor cursor() throws Exception{
+        return tree.cursor();
+    }
+
     class ParseValueRes{
         Object value;
         int shift;
@@ -2,7 +2,9 @@ package com.whut.database.backend.Tbm;
 
 import com.google.common.primitives.Bytes;
 import com.sun.javafx.collections.MappingChange;
+import com.whut.database.backend.IM.BPlusTree;
 import com.whut.database.backend.TM.TransactionManagerImpl;
+import com.whut.database.backend.VM.VersionManager;
 import com.whut.database.backend.Tbm.Field.ParseValueRes;
 import com.whut.database.backend.parser.statement.*;
 import com.whut.database.backend.utils.Panic;
@@ -206,9 +208,7 @@ public class Table {
             long uuid = ((TableManagerImpl) tbm).vm.insert(xid,raw);
 
             // 判断新的属性是否是索引，是的话，重新加入B+树
-            /*
-                question：原来的索引记录没有从B+树中删除
-             */
+            // 原来的索引记录在旧版本被回收时删除（见 vacuum）
             for (Field fd : fields) {
                 if (fd.isIndexed()){
                     fd.insert(entry.get(fd.fieldName),uuid);
@@ -268,6 +268,64 @@ public class Table {
         return sb.toString();
     }
 
+    /*
+        冻结表的记录：表和字段的信息，以及通过第一个索引能找到的所有版本（旧版本和已删除的记录也在索引中）
+        没有索引的表无法读取记录，只冻结表和字段的信息
+     */
+    public void freeze(long xid, long horizon) throws Exception{
+        VersionManager vm = ((TableManagerImpl) tbm).vm;
+        vm.freeze(xid, uid, horizon);
+        Field indexed = null;
+        for (Field field : fields) {
+            vm.freeze(xid, field.uid, horizon);
+            if (indexed == null && field.isIndexed()) indexed = field;
+        }
+        if (indexed == null) return;
+        BPlusTree.Cursor cursor = indexed.cursor();
+        List<Long> rows;
+        while ((rows = cursor.next()) != null){
+            for (long row : rows) {
+                vm.freeze(xid, row, horizon);
+            }
+        }
+    }
+
+    /*
+        回收表中对所有事务都不可见的版本：先从所有索引中删除，再释放数据，返回回收的个数
+        正在执行的语句可能已经从索引中读到了这些uid，释放的槽在 horizon 越过这些语句的事务之后才会被重用，
+        语句执行期间读到的uid不会指向其他记录
+     */
+    public int vacuum(long horizon) throws Exception{
+        VersionManager vm = ((TableManagerImpl) tbm).vm;
+        Field indexed = null;
+        for (Field field : fields) {
+            if (field.isIndexed()){
+                indexed = field;
+                break;
+            }
+        }
+        if (indexed == null) return 0;
+
+        // 当前批次的uid已经复制出来，从索引中删除不影响之后的叶子节点
+        int count = 0;
+        BPlusTree.Cursor cursor = indexed.cursor();
+        List<Long> rows;
+        while ((rows = cursor.next()) != null){
+            for (long row : rows) {
+                byte[] raw = vm.readDead(row, horizon);
+                if (raw == null) continue;
+
+                Map<String,Object> entry = parseEntry(raw);
+                for (Field field : fields) {
+                    if (field.isIndexed()) field.delete(entry.get(field.fieldName), row);
+                }
+                vm.free(row);
+                count++;
+            }
+        }
+        return count;
+    }
+
     /*
         解析Where条件，选择出符合条件的uids
      */
@@ -23,6 +23,12 @@ public interface TableManager {
 
     BeginRes begin(Begin begin);
 
+    void freeze() throws Exception; // 冻结所有表的记录，截断事务状态
+
+    int vacuum() throws Exception; // 回收所有表中对所有事务都不可见的版本，返回回收的个数
+
+    void closeConnection(); // 连接关闭时在处理该连接的线程中调用，归还线程占用的资源
+
     /*
         创建TableManager
      */
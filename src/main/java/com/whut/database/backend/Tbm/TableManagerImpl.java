@@ -3,18 +3,39 @@ package com.whut.database.backend.Tbm;
 import com.whut.database.backend.DM.DataManager;
 import com.whut.database.backend.VM.VersionManager;
 import com.whut.database.backend.parser.statement.*;
+import com.whut.database.backend.utils.Panic;
 import com.whut.database.backend.utils.Parser;
 import com.whut.database.common.Error;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
+/*
+    表管理器的实现
+
+    冻结：后台线程每隔 FREEZE_INTERVAL 检查一次，冻结的边界前进超过 FREEZE_THRESHOLD 个事务时，
+    把所有表中边界之前的事务编号改写为超级事务（见 Entry.freeze），然后截断事务状态
+    事务状态只需要保存边界之后的事务，xid文件和内存中的状态表不会随着运行时间一直增长
+
+    回收（vacuum）：删除和更新留下的旧版本在删除它们的事务提交、并且早于所有活跃事务的快照之后对所有事务都不可见，
+    从索引中删除后释放数据，空间由DM整理页之后重新使用，uid在 horizon 越过回收时开启的事务之后才重新使用；后台线程每隔 VACUUM_INTERVAL 检查一次，
+    删除或更新的记录超过 VACUUM_THRESHOLD 条时回收
+ */
 public class TableManagerImpl implements TableManager {
 
+    private static final long FREEZE_INTERVAL = TimeUnit.MINUTES.toNanos(1); // 后台冻结的检查间隔
+    private static final long FREEZE_THRESHOLD = 1 << 16; // 边界前进超过该事务数时冻结
+    private static final long VACUUM_INTERVAL = TimeUnit.SECONDS.toNanos(10); // 后台回收的检查间隔
+    private static final long VACUUM_THRESHOLD = 1000; // 删除或更新的记录超过该条数时回收
+
     VersionManager vm;
     DataManager dm;
 
@@ -22,6 +43,12 @@ public class TableManagerImpl implements TableManager {
     private Map<String,Table> tableCache; // 数据库中所有的表记录
     private Map<Long, List<Table>> xidTableCache; // 某一事务创建的表记录
     private Lock lock;
+    private Lock freezeLock; // 同一时间只有一次冻结
+    private volatile long frozenHorizon; // 上一次冻结的边界
+    private Thread freezer; // 后台冻结线程
+    private Lock vacuumLock; // 同一时间只有一次回收
+    private AtomicLong deadVersions; // 上一次回收之后删除或更新的记录条数
+    private Thread vacuumer; // 后台回收线程
 
     public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -30,7 +57,16 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         this.lock = new ReentrantLock();
+        this.freezeLock = new ReentrantLock();
+        this.vacuumLock = new ReentrantLock();
+        this.deadVersions = new AtomicLong();
         loadTables();
+        this.freezer = new Thread(this::freezeLoop, "freezer");
+        freezer.setDaemon(true);
+        freezer.start();
+        this.vacuumer = new Thread(this::vacuumLoop, "vacuumer");
+        vacuumer.setDaemon(true);
+        vacuumer.start();
     }
 
     /*
@@ -79,6 +115,14 @@ public class TableManagerImpl implements TableManager {
         return "abort".getBytes();
     }
 
+    /*
+        连接关闭：归还该线程的插入页
+     */
+    @Override
+    public void closeConnection() {
+        dm.releaseInsertPage();
+    }
+
     /*
         获取数据库中表的信息
      */
@@ -113,6 +157,8 @@ public class TableManagerImpl implements TableManager {
 
             // 创建新表
             Table table = Table.createTable(this, firstTableUid(), xid, create);
+            // booter不经过页缓存，写入之前表和索引的日志必须落盘
+            dm.flushLog();
             updateFirstTableUid(table.uid);
 
             tableCache.put(create.tableName,table);
@@ -168,6 +214,7 @@ public class TableManagerImpl implements TableManager {
         if (table == null) throw Error.TableNotFoundException;
 
         int count = table.update(xid, update);
+        deadVersions.addAndGet(count);
         return ("update " + count).getBytes();
     }
 
@@ -183,6 +230,7 @@ public class TableManagerImpl implements TableManager {
         if (table == null) throw Error.TableNotFoundException;
 
         int count = table.delete(xid, delete);
+        deadVersions.addAndGet(count);
         return ("delete " + count).getBytes();
     }
 
@@ -194,4 +242,94 @@ public class TableManagerImpl implements TableManager {
         res.result = "begin".getBytes();
         return res;
     }
+
+    /*
+        冻结：先确定边界，用一个普通事务记录修改的日志，提交之后日志已经落盘，再截断事务状态
+     */
+    @Override
+    public void freeze() throws Exception {
+        freezeLock.lock();
+        try {
+            long horizon = vm.horizon();
+            lock.lock();
+            List<Table> tables = new ArrayList<>(tableCache.values());
+            lock.unlock();
+
+            long xid = vm.begin(0);
+            try {
+                for (Table table : tables) {
+                    table.freeze(xid, horizon);
+                }
+            }catch (Exception e){
+                vm.abort(xid);
+                throw e;
+            }
+            vm.commit(xid);
+            vm.truncate(horizon);
+            frozenHorizon = horizon;
+        }finally {
+            freezeLock.unlock();
+        }
+    }
+
+    /*
+        后台冻结线程：冻结失败时没有更新边界，下一次间隔后重试；只有文件读写错误终止程序
+     */
+    private void freezeLoop(){
+        while (true){
+            LockSupport.parkNanos(this, FREEZE_INTERVAL);
+            if (vm.horizon() - frozenHorizon < FREEZE_THRESHOLD) continue;
+            try {
+                freeze();
+            } catch (IOException e) {
+                Panic.panic(e);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /*
+        回收：边界之前提交的删除对所有事务可见，被删除的版本不会再被读取
+     */
+    @Override
+    public int vacuum() throws Exception {
+        vacuumLock.lock();
+        long dead = deadVersions.getAndSet(0);
+        try {
+            long horizon = vm.horizon();
+            lock.lock();
+            List<Table> tables = new ArrayList<>(tableCache.values());
+            lock.unlock();
+
+            int count = 0;
+            for (Table table : tables) {
+                count += table.vacuum(horizon);
+            }
+            return count;
+        }catch (Exception e){
+            // 没有回收完，计数加回去，下一次仍然会触发
+            deadVersions.addAndGet(dead);
+            throw e;
+        }finally {
+            vacuumLock.unlock();
+        }
+    }
+
+    /*
+        后台回收线程：回收失败时下一次间隔后重试；只有文件读写错误终止程序
+     */
+    private void vacuumLoop(){
+        while (true){
+            LockSupport.parkNanos(this, VACUUM_INTERVAL);
+            if (deadVersions.get() < VACUUM_THRESHOLD) continue;
+            try {
+                vacuum();
+            } catch (IOException e) {
+                Panic.panic(e);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
 }
@@ -2,6 +2,7 @@ package com.whut.database.backend.VM;
 
 import com.google.common.primitives.Bytes;
 import com.whut.database.backend.DM.dataItem.DataItem;
+import com.whut.database.backend.TM.TransactionManager;
 import com.whut.database.backend.common.SubArray;
 import com.whut.database.backend.utils.Parser;
 
@@ -11,6 +12,9 @@ import java.util.Arrays;
  VM向上层抽象出entry记录
     entry结构：[XMIN] [XMAX] [data]
     XMIN 是创建该条记录（版本）的事务编号，而 XMAX 则是删除该条记录（版本）的事务编号
+    提示位：XMIN 和 XMAX 的最高两位分别表示该事务已提交、已取消，事务编号用不到这两位
+    读取时第一次确定事务的最终状态后设置，不写日志，丢失之后重新查询事务管理器即可；
+    修改 XMIN 或 XMAX 时整个字段被覆盖，提示位随之清除
  */
 public class Entry {
 
@@ -18,6 +22,10 @@ public class Entry {
     private static final int OF_XMAX = OF_X_MIN + 8;
     private static final int OF_DATA = OF_XMAX + 8;
 
+    private static final long HINT_COMMITTED = 1L << 63;
+    private static final long HINT_ABORTED = 1L << 62;
+    private static final long XID_MASK = ~(HINT_COMMITTED | HINT_ABORTED);
+
     private long uid;
     private DataItem dataItem; // 数据
     private VersionManager vm; // 版本控制器
@@ -32,10 +40,11 @@ public class Entry {
     }
 
     /*
-        生成一条版本记录
+        生成一条版本记录，数据已经被释放时返回null
      */
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception{
         DataItem di = ((VersionManagerImpl) vm).dm.read(uid);
+        if (di == null) return null;
         return newEntry(uid,di,vm);
     }
 
@@ -78,28 +87,91 @@ public class Entry {
         获取低水位
      */
     public long getXmin(){
-        dataItem.rLock();
-        try{
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start + OF_X_MIN, sa.start + OF_XMAX));
-        }finally {
-            dataItem.rUnLock();
-        }
+        return getField(OF_X_MIN) & XID_MASK;
     }
 
     /*
         获取高水位
      */
     public long getXmax(){
+        return getField(OF_XMAX) & XID_MASK;
+    }
+
+    /*
+        创建记录的事务 xMin 是否已经提交
+     */
+    public boolean isXminCommitted(TransactionManager tm, long xMin){
+        return isCommitted(tm, OF_X_MIN, xMin);
+    }
+
+    /*
+        创建记录的事务 xMin 是否已经取消
+     */
+    public boolean isXminAborted(TransactionManager tm, long xMin){
+        return getStatus(tm, OF_X_MIN, xMin) == TransactionManager.FIELD_TRAN_ABORTED;
+    }
+
+    /*
+        删除记录的事务 xMax 是否已经提交
+     */
+    public boolean isXmaxCommitted(TransactionManager tm, long xMax){
+        return isCommitted(tm, OF_XMAX, xMax);
+    }
+
+    private boolean isCommitted(TransactionManager tm, int of, long xid){
+        return getStatus(tm, of, xid) == TransactionManager.FIELD_TRAN_COMMITTED;
+    }
+
+    /*
+        有提示位时直接返回，否则查询事务管理器，状态确定（已提交或已取消）之后设置提示位
+        字段已经不是 xid（被并发修改）时只查询，不使用也不设置提示位
+     */
+    private byte getStatus(TransactionManager tm, int of, long xid){
+        if (xid == TransactionManager.SUPER_XID) return TransactionManager.FIELD_TRAN_COMMITTED;
+        long field = getField(of);
+        if ((field & XID_MASK) == xid){
+            if ((field & HINT_COMMITTED) != 0) return TransactionManager.FIELD_TRAN_COMMITTED;
+            if ((field & HINT_ABORTED) != 0) return TransactionManager.FIELD_TRAN_ABORTED;
+        }
+        if (tm.isCommitted(xid)){
+            setHint(of, xid, HINT_COMMITTED);
+            return TransactionManager.FIELD_TRAN_COMMITTED;
+        }
+        if (tm.isAborted(xid)){
+            setHint(of, xid, HINT_ABORTED);
+            return TransactionManager.FIELD_TRAN_ABORTED;
+        }
+        return TransactionManager.FIELD_TRAN_ACTIVE;
+    }
+
+    /*
+        设置提示位：只标记页为脏页，不写日志
+     */
+    private void setHint(int of, long xid, long hint){
+        dataItem.lock();
+        try {
+            SubArray sa = dataItem.data();
+            if (parseField(sa, of) != xid) return;
+            System.arraycopy(Parser.long2Byte(xid | hint),0,sa.raw,sa.start+of,8);
+            dataItem.page().setDirty(true);
+        }finally {
+            dataItem.unlock();
+        }
+    }
+
+    private long getField(int of){
         dataItem.rLock();
         try{
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start + OF_XMAX, sa.start + OF_DATA));
+            return parseField(dataItem.data(), of);
         }finally {
             dataItem.rUnLock();
         }
     }
 
+    private static long parseField(SubArray sa, int of){
+        return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start + of, sa.start + of + 8));
+    }
+
     /*
         设置高水位
      */
@@ -113,6 +185,41 @@ public class Entry {
         }
     }
 
+    /*
+        冻结记录：horizon 之前的事务都已经结束，也不在任何活跃事务的快照中
+        XMIN已提交：改为超级事务；XMIN已取消：XMAX也设为XMIN，状态表截断之后两者都视为已提交，记录仍然对所有事务不可见
+        XMAX已取消：清除；检查和修改都在写锁中，不会覆盖并发的删除，返回记录是否被修改
+     */
+    public boolean freeze(TransactionManager tm, long horizon, long xid){
+        dataItem.before();
+        boolean changed = false;
+        try {
+            SubArray sa = dataItem.data();
+            long xMin = parseField(sa, OF_X_MIN) & XID_MASK;
+            long xMax = parseField(sa, OF_XMAX) & XID_MASK;
+            if (xMin != TransactionManager.SUPER_XID && xMin < horizon){
+                if (tm.isCommitted(xMin)){
+                    xMin = TransactionManager.SUPER_XID;
+                    changed = true;
+                }else if (tm.isAborted(xMin) && xMax != xMin){
+                    xMax = xMin;
+                    changed = true;
+                }
+            }
+            if (xMax != TransactionManager.SUPER_XID && xMax != xMin && xMax < horizon && tm.isAborted(xMax)){
+                xMax = TransactionManager.SUPER_XID;
+                changed = true;
+            }
+            if (changed){
+                System.arraycopy(Parser.long2Byte(xMin),0,sa.raw,sa.start+OF_X_MIN,8);
+                System.arraycopy(Parser.long2Byte(xMax),0,sa.raw,sa.start+OF_XMAX,8);
+            }
+        }finally {
+            if (changed) dataItem.after(xid);
+            else dataItem.unBefore();
+        }
+        return changed;
+    }
 
     public long getUid(){
         return uid;
@@ -2,193 +2,217 @@ package com.whut.database.backend.VM;
 
 import com.whut.database.common.Error;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /*
-    死锁检测：维护有向图，判断有没有环
-    防止两阶段锁出现死锁
+    记录锁表：防止两阶段锁出现死锁
 
+    每个uid对应一个锁项，记录持有者和FIFO等待队列；锁项按uid散列到 STRIPES 个分段中，
+    每个分段有自己的锁，不同uid的加锁和释放互不影响，开销与系统中锁的总数无关
+    释放时直接把锁交给队首的事务并唤醒它（公平锁）
+
+    死锁检测是增量的：事务开始等待时沿着 “等待的uid -> 持有者 -> 持有者等待的uid” 走一遍，
+    回到自己说明出现了环，只检查这一条链；链上的状态不在同一个锁中读取，
+    两个事务同时等待形成环时至少有一个能看到对方，漏掉的情况由等待超时（LOCK_TIMEOUT）兜底
  */
 public class LockTable {
 
-    private Map<Long, List<Long>> x2u; // 某个XID已经获得的资源的UID列表
-
-    private Map<Long,Long> u2x; // UID被某个XID持有
-
-    private Map<Long,List<Long>> wait; // 正在等待某个UID的XID列表
+    private static final int STRIPES = 64; // 分段数，必须是2的幂
+    private static final long LOCK_TIMEOUT = TimeUnit.SECONDS.toNanos(10); // 等待锁的超时时间
 
-    private Map<Long, Lock> waitLock; // 正在等待资源的XID的锁
+    private Stripe[] stripes;
+    private long lockTimeout;
 
-    private Map<Long,Long> waitU;  // XID正在等待的UID
-
-    private Lock lock;
+    private Map<Long, TxnLocks> txns; // 获取过或正在等待锁的事务
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        this(LOCK_TIMEOUT);
+    }
+
+    // lockTimeout：等待锁的超时时间（纳秒）
+    LockTable(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+        stripes = new Stripe[STRIPES];
+        for(int i = 0; i < STRIPES; i++){
+            stripes[i] = new Stripe();
+        }
+        txns = new ConcurrentHashMap<>();
     }
 
     /*
-        事务执行时，添加边，进行死锁检测
-        不用等待返回null，需要等待返回锁对象
-        出现死锁时抛出异常
+        事务获取uid的锁，需要等待时阻塞到获取为止
+        出现死锁或等待超时时抛出异常，此时没有获取到锁
      */
-    public Lock add(long xid, long uid) throws Exception{
-        lock.lock();
-        try{
-            if(isInList(x2u,xid,uid)){ // 该资源没有被任何xid获取过
-                return null;
-            }
+    public void acquire(long xid, long uid) throws Exception{
+        TxnLocks t = txns.computeIfAbsent(xid, TxnLocks::new);
+        Stripe s = stripe(uid);
+        Waiter w;
 
-            if(!u2x.containsKey(uid)){ // 该资源没有被任何xid持有
-                u2x.put(uid,xid);
-                putIntoList(x2u,xid,uid);
-                return null;
+        s.lock.lock();
+        try {
+            LockEntry e = s.entries.get(uid);
+            if (e == null){ // 该资源没有被任何事务持有
+                e = new LockEntry(uid);
+                e.owner = xid;
+                s.entries.put(uid, e);
+                t.held.add(e);
+                return;
             }
+            if (e.owner == xid) return; // 已经持有
 
-            // 添加边
-            waitU.put(xid,uid);
-            putIntoList(wait,uid,xid);
+            w = new Waiter(xid, e);
+            e.queue.addLast(w);
+            t.waiting = w;
+        }finally {
+            s.lock.unlock();
+        }
 
-            // 检测是否有死锁
-            if (hasDeadLock()){
-                // 移除边
-                waitU.remove(xid);
-                removeFromList(wait,uid,xid);
-                throw Error.DeadlockException;
+        try {
+            if (hasDeadLock(t, w)){
+                if (cancel(s, w)) throw Error.DeadlockException;
+            }else {
+                await(s, w);
             }
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid,l);
-            return l;
+            t.held.add(w.entry);
         }finally {
-            lock.unlock();
+            t.waiting = null;
         }
     }
 
     /*
-        事务提交或放弃时，释放锁，并删除边
+        等待锁被交给自己，超时后放弃等待
      */
-    public void remove(long xid){
-        lock.lock();
-        try {
-            List<Long> uidList = x2u.get(xid);
-            if (uidList != null){
-                while (uidList.size() > 0){
-                    Long uid = uidList.remove(0);
-                    selectNewXID(uid);
-                }
+    private void await(Stripe s, Waiter w) throws Exception{
+        long deadline = System.nanoTime() + lockTimeout;
+        while (!w.granted){
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0){
+                if (cancel(s, w)) throw Error.LockTimeoutException;
+                return;
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
-        }finally {
-            lock.unlock();
+            LockSupport.parkNanos(this, nanos);
         }
     }
 
     /*
-        从等待队列中选择一个xid来占用uid
+        放弃等待，返回true；锁已经被交给自己时返回false
      */
-    private void selectNewXID(Long uid) {
-        u2x.remove(uid);
-        List<Long> xidList = wait.get(uid);
-        if (xidList == null) return;
-        assert xidList.size() > 0;
-
-        while(xidList.size() > 0){
-            Long xid = xidList.remove(0);
-            if(!waitLock.containsKey(xid)) continue;
-
-            // 公平锁的体现：从等待队列中获取
-            u2x.put(uid,xid);
-            Lock l = waitLock.get(xid);
-            l.unlock();
-            break;
+    private boolean cancel(Stripe s, Waiter w){
+        s.lock.lock();
+        try {
+            if (w.granted) return false;
+            w.entry.queue.remove(w);
+            return true;
+        }finally {
+            s.lock.unlock();
         }
-
-        if (xidList.size() == 0) wait.remove(uid);
     }
 
     /*
-        从列表中移除等待的资源
+        从自己等待的锁出发，沿着持有者的等待关系查找，回到自己说明出现死锁
+        不在环上的事务之间的环由环上的事务自己检测，最多走过活跃事务个数步
      */
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid, long xid) {
-        List<Long> xidList = listMap.get(uid);
-        if (xidList == null) return;
-
-        for (Long e : xidList) {
-            if(e == xid){
-                xidList.remove(e);
-                break;
-            }
+    private boolean hasDeadLock(TxnLocks self, Waiter w) {
+        Waiter cur = w;
+        int steps = txns.size();
+        while (cur != null && steps-- >= 0){
+            long owner = cur.entry.owner;
+            if (owner == self.xid) return !w.granted;
+            TxnLocks t = txns.get(owner);
+            if (t == null) return false;
+            cur = t.waiting;
         }
-        if(xidList.size() == 0) listMap.remove(uid);
+        return false;
     }
 
-    private Map<Long,Integer> xidStamp;
-    private int stamp;
-
     /*
-        死锁检测是否有环
+        事务提交或放弃时，释放持有的所有锁，每个锁交给等待队列中的第一个事务
      */
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = -1;
-
-        for (Long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if(s != null && s > 0) continue;
-            stamp++;
-            if (dfs(xid)) return true;
+    public void remove(long xid){
+        TxnLocks t = txns.remove(xid);
+        if (t == null) return;
+
+        for (LockEntry e : t.held) {
+            Stripe s = stripe(e.uid);
+            s.lock.lock();
+            try {
+                Waiter next = e.queue.pollFirst();
+                if (next == null){
+                    e.owner = 0;
+                    s.entries.remove(e.uid);
+                    continue;
+                }
+                // 公平锁的体现：从等待队列中获取
+                e.owner = next.xid;
+                next.granted = true;
+                LockSupport.unpark(next.thread);
+            }finally {
+                s.lock.unlock();
+            }
         }
+    }
 
-        return false;
+    private Stripe stripe(long uid){
+        int h = Long.hashCode(uid);
+        h ^= h >>> 16;
+        return stripes[h & (STRIPES - 1)];
     }
 
-    private boolean dfs(Long xid) {
-        Integer stp = xidStamp.get(xid);
-        if (stp != null && stp == stamp) return true;
-        if (stp != null && stp < stamp) return false;
+    /*
+        分段：该分段中的锁项，锁项的持有者和等待队列只在分段锁中修改
+     */
+    private static class Stripe {
+        Lock lock = new ReentrantLock();
+        Map<Long, LockEntry> entries = new HashMap<>();
+    }
 
-        xidStamp.put(xid,stamp);
+    /*
+        uid的锁项
+     */
+    private static class LockEntry {
+        final long uid;
+        volatile long owner; // 持有者，死锁检测时不加锁读取
+        ArrayDeque<Waiter> queue = new ArrayDeque<>(); // 等待该uid的事务
 
-        Long uid = waitU.get(xid);
-        if(uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+        LockEntry(long uid) {
+            this.uid = uid;
+        }
     }
 
     /*
-        将uid放入xid所获取的资源列表
+        等待中的事务，获取到锁后由释放锁的线程设置 granted 并唤醒
      */
-    private void putIntoList(Map<Long, List<Long>> listMap, long xid, long uid) {
-        if (!listMap.containsKey(xid)){
-            listMap.put(xid,new ArrayList<>());
+    private static class Waiter {
+        final long xid;
+        final LockEntry entry;
+        final Thread thread = Thread.currentThread();
+        volatile boolean granted;
+
+        Waiter(long xid, LockEntry entry) {
+            this.xid = xid;
+            this.entry = entry;
         }
-        listMap.get(xid).add(0,uid);
     }
 
     /*
-        检测某个uid是否被xid获取
+        事务持有的锁和正在等待的锁，持有的锁只由事务自己的线程访问
      */
-    private boolean isInList(Map<Long, List<Long>> listMap, long xid, long uid) {
-        List<Long> uidList = listMap.get(xid);
-        if(uidList == null) return false;
-        for (long e : uidList) {
-            if (e == uid) return true;
-        }
+    private static class TxnLocks {
+        final long xid;
+        List<LockEntry> held = new ArrayList<>();
+        volatile Waiter waiting;
 
-        return false;
+        TxnLocks(long xid) {
+            this.xid = xid;
+        }
     }
 }
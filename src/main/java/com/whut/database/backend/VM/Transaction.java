@@ -1,13 +1,14 @@
 package com.whut.database.backend.VM;
 
 import com.whut.database.backend.TM.TransactionManager;
-import com.whut.database.backend.TM.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /*
     抽象事务
+    快照：事务开始时正在进行的事务，由 snapshotXmin、xid 和一个升序的xid数组表示
+    比 snapshotXmin 小的事务在开始时都已经结束，不小于 xid 的事务在开始之后才开启，
+    两者之间的事务在数组中二分查找；数组可能和其他事务共用，只读取前 snapshotSize 个
  */
 public class Transaction {
 
@@ -15,33 +16,42 @@ public class Transaction {
 
     public int level; // 事务的隔离级别：0为读已提交，1为可重复读
 
-    public Map<Long,Boolean> snapshot; // 记录事务开始时正在活跃的事务
+    public long[] snapshot; // 事务开始时正在进行的事务，升序
+
+    public int snapshotSize; // 快照中事务的个数
+
+    public long snapshotXmin; // 快照中最小的事务，快照为空时为xid
 
     public Exception err;
 
     public boolean autoAborted;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long,Transaction> active){
+    /*
+        running 的前 size 个是开启该事务时正在进行的事务，升序，读已提交不需要快照
+     */
+    public static Transaction newTransaction(long xid, int level, long[] running, int size){
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
-        if(level != 0){ // 将活跃事务放入快照中
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()){
-                t.snapshot.put(x,true);
-            }
+        t.snapshotXmin = xid;
+        if(level != 0){
+            t.snapshot = running;
+            t.snapshotSize = size;
+            if (size > 0) t.snapshotXmin = running[0];
         }
 
         return t;
     }
 
     /*
-        判断事务是否在活跃事务当中
+        判断事务是否在快照中：开始时正在进行或者之后才开启
      */
     public boolean isInSnapshot(long xid){
         if (xid == TransactionManager.SUPER_XID) return false; // 超级事务
+        if (xid < snapshotXmin) return false;
+        if (xid >= this.xid) return true;
 
-        return snapshot.containsKey(xid);
+        return Arrays.binarySearch(snapshot, 0, snapshotSize, xid) >= 0;
     }
 
 
@@ -17,6 +17,16 @@ public interface VersionManager {
 
     void abort(long xid);
 
+    long horizon(); // 冻结的边界：之前的事务都已经结束，也不在任何活跃事务的快照中
+
+    void freeze(long xid, long uid, long horizon) throws Exception; // 冻结一条记录，修改记录在 xid 的日志中
+
+    void truncate(long horizon); // 记录都冻结之后，截断事务状态
+
+    byte[] readDead(long uid, long horizon) throws Exception; // 记录对所有事务都不可见时返回其中的数据，否则返回null
+
+    void free(long uid) throws Exception; // 回收已经从索引中删除的不可见记录，uid在 horizon 越过回收时开启的事务之后才会被重用
+
     static VersionManager newVersionManager(TransactionManager tm, DataManager dm){
         return new VersionManagerImpl(tm,dm);
     }
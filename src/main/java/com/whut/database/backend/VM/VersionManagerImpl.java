@@ -6,28 +6,48 @@ import com.whut.database.backend.common.AbstractCache;
 import com.whut.database.backend.utils.Panic;
 import com.whut.database.common.Error;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/*
+    版本管理器的实现
+    活跃事务表是并发的哈希表，读写记录和提交时查找事务不加锁；只有开启事务加锁，保证快照中不会漏掉更早开启的事务
+
+    快照：running 是正在进行的事务，升序，只在末尾追加，开启事务时把当前的数组和长度交给新事务共用
+    追加的位置在已有事务读取的范围之外，两次开启之间没有事务结束时开启事务只需要追加；
+    有事务结束之后，下一次开启时重建数组，去掉已经结束的事务，已经开启的事务仍然使用旧数组
+ */
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
+    private static final int RUNNING_INIT_SIZE = 16;
+
     TransactionManager tm; // 事务管理器
     DataManager dm; // 数据管理器
     Map<Long,Transaction> activeTransaction; // 活跃事务
-    Lock lock; // 锁
+    Lock lock; // 开启事务的锁
     LockTable lt; // 死锁检测器
+    private long[] running; // 正在进行的事务，升序，前 runningSize 个有效
+    private int runningSize;
+    private int runningEnded; // 重建 running 时已经结束的事务个数
+    private AtomicInteger ended; // 已经结束的事务个数
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
-        // 将超级事务添加到活跃事务中
-        activeTransaction.put(TransactionManager.SUPER_XID,Transaction.newTransaction(TransactionManager.SUPER_XID,0,null));
+        this.activeTransaction = new ConcurrentHashMap<>();
+        // 将超级事务添加到活跃事务中，超级事务不在快照中
+        activeTransaction.put(TransactionManager.SUPER_XID,Transaction.newTransaction(TransactionManager.SUPER_XID,0,null,0));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.running = new long[RUNNING_INIT_SIZE];
+        this.ended = new AtomicInteger();
+        // 释放的记录的槽要等到正在执行的语句都结束后才能重用
+        dm.setHorizon(this::horizon);
     }
 
     /*
@@ -35,9 +55,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.err != null) throw t.err;
 
@@ -54,7 +72,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if (e == Error.NullEntryException) return null;
             else throw e;
         }finally {
-            entry.release();
+            if (entry != null) entry.release();
         }
 
     }
@@ -64,9 +82,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if (t.err != null) throw t.err;
 
@@ -80,25 +96,22 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) throw t.err;
 
         Entry entry = null;
         try {
-            entry = super.get(xid);
+            entry = super.get(uid);
 
             // 判断可见性
             if (!Visibility.isVisible(tm,t,entry)){
                 return false;
             }
 
-            // 获取资源的锁
-            Lock l = null;
+            // 获取资源的锁，只有当xid对应的事务获取到资源之后，才能继续向下执行
             try {
-                l = lt.add(xid, uid);
+                lt.acquire(xid, uid);
             }catch (Exception e){
                 t.err = Error.ConcurrentUpdateException;
                 internAbort(xid, true);
@@ -106,12 +119,6 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 throw t.err;
             }
 
-            // 只有当xid对应的事务获取到资源之后，才能继续向下执行
-            if (l != null){
-                l.lock();
-                l.unlock();
-            }
-
             if (entry.getXmax() == xid) return false;
 
             // 判断是否存在版本跳跃问题
@@ -129,7 +136,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if (e == Error.NullEntryException) return false;
             else throw e;
         }finally {
-            entry.release();
+            if (entry != null) entry.release();
         }
 
     }
@@ -142,22 +149,47 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         try {
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid,level,activeTransaction);
+            if (ended.get() != runningEnded) rebuildRunning();
+            Transaction t = Transaction.newTransaction(xid,level,running,runningSize);
             activeTransaction.put(xid,t);
+            // 数组已满时复制到新数组，旧数组仍然被已经开启的事务使用
+            if (runningSize == running.length) running = Arrays.copyOf(running, runningSize * 2);
+            running[runningSize++] = xid;
             return xid;
         }finally {
             lock.unlock();
         }
     }
 
+    /*
+        重建正在进行的事务数组，去掉已经结束的事务
+        先读取结束的个数：之后结束的事务可能还留在数组中，会在下一次开启时去掉
+     */
+    private void rebuildRunning(){
+        runningEnded = ended.get();
+        long[] rebuilt = new long[Math.max(RUNNING_INIT_SIZE, runningSize * 2)];
+        int size = 0;
+        for(int i = 0; i < runningSize; i++){
+            if (activeTransaction.containsKey(running[i])) rebuilt[size++] = running[i];
+        }
+        running = rebuilt;
+        runningSize = size;
+    }
+
+    /*
+        事务结束：状态修改之后才从活跃事务中移除，冻结的边界不会越过还没有结束的事务
+     */
+    private void end(long xid){
+        activeTransaction.remove(xid);
+        ended.incrementAndGet();
+    }
+
     /*
         提交事务
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if (t.err != null) throw t.err;
@@ -167,12 +199,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(e);
         }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
-
         lt.remove(xid);
-        tm.commit(xid);
+        // 事务的日志落盘之后才能标记为已提交
+        dm.commit(xid);
+
+        end(xid);
     }
 
     /*
@@ -187,15 +218,83 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         自动回滚
      */
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
+
+        if (!t.autoAborted){
+            lt.remove(xid);
+            dm.abort(xid);
+        }
+
         // 手动回滚
-        if(!autoAborted) activeTransaction.remove(xid);
-        lock.unlock();
+        if(!autoAborted) end(xid);
+    }
 
-        if (t.autoAborted) return;
-        lt.remove(xid);
-        tm.abort(xid);
+    /*
+        冻结的边界：活跃事务和它们快照中的事务里最小的一个，没有时为下一个开启的事务
+        开启事务也在锁中，计算期间不会有新的事务在边界之前开启
+     */
+    @Override
+    public long horizon() {
+        lock.lock();
+        try {
+            long horizon = tm.nextXid();
+            for (Transaction t : activeTransaction.values()) {
+                if (t.xid == TransactionManager.SUPER_XID) continue;
+                horizon = Math.min(horizon, t.snapshotXmin);
+            }
+            return horizon;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+        冻结一条记录，记录已经被释放时跳过
+     */
+    @Override
+    public void freeze(long xid, long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+            entry.freeze(tm, horizon, xid);
+        }catch (Exception e){
+            if (e != Error.NullEntryException) throw e;
+        }finally {
+            if (entry != null) entry.release();
+        }
+    }
+
+    @Override
+    public void truncate(long horizon) {
+        tm.truncate(horizon);
+    }
+
+    /*
+        读取不可见的记录，用于回收之前从索引中删除
+     */
+    @Override
+    public byte[] readDead(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+            if (!Visibility.isDead(tm,entry,horizon)) return null;
+            return entry.data();
+        }catch (Exception e){
+            if (e == Error.NullEntryException) return null;
+            else throw e;
+        }finally {
+            if (entry != null) entry.release();
+        }
+    }
+
+    /*
+        回收记录：不可见的记录不会再被修改，调用者需要先从索引中删除对它的引用
+        uid只在 horizon 之后才稳定：回收时已经开启的事务中的语句可能还持有该uid，
+        DM等到 horizon 越过回收时的下一个事务之后才把它的槽交给新插入的记录（见 DataManagerImpl.free）
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        dm.free(uid);
     }
 
     @Override
@@ -209,7 +308,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     protected void releaseForCache(Entry entry) {
-        entry.release();
+        entry.remove();
     }
 
     public void releaseEntry(Entry entry) {
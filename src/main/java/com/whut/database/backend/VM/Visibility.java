@@ -19,10 +19,21 @@ public class Visibility {
                 tm.isCommitted(xMax)：高版本已经提交
                 xMax > t.xid || t.isInSnapshot(xMax)：由高版本的事务或是处在活跃状态的事务
              */
-            return tm.isCommitted(xMax) && (xMax > t.xid || t.isInSnapshot(xMax));
+            return e.isXmaxCommitted(tm,xMax) && (xMax > t.xid || t.isInSnapshot(xMax));
         }
     }
 
+    /*
+        记录是否对所有事务都不可见：创建它的事务已经取消，或者删除它的事务在 horizon 之前已经提交
+        horizon 之前的事务不在任何活跃事务的快照中，之后开启的事务也都能看到这次删除
+     */
+    public static boolean isDead(TransactionManager tm, Entry e, long horizon){
+        long xMin = e.getXmin();
+        if (e.isXminAborted(tm,xMin)) return true;
+        long xMax = e.getXmax();
+        return xMax != TransactionManager.SUPER_XID && xMax < horizon && e.isXmaxCommitted(tm,xMax);
+    }
+
     /*
         判断数据是否对该事务可见
      */
@@ -44,10 +55,10 @@ public class Visibility {
         // 该数据由该事务创建且没有被删除
         if(xMin == xid && xMax == 0) return true;
 
-        if(tm.isCommitted(xMin)){ // 由已提交事务创建
+        if(e.isXminCommitted(tm,xMin)){ // 由已提交事务创建
             if (xMax == 0) return true; // 没有被删除
             // 由未提交事务删除
-            if(xMax != xid && !tm.isCommitted(xMax)) return true;
+            if(xMax != xid && !e.isXmaxCommitted(tm,xMax)) return true;
         }
 
         return false;
@@ -67,7 +78,7 @@ public class Visibility {
             tm.isCommitted(xMin) && xMin < xid：由低版本事务提交
             !t.isInSnapshot(xMin)：在当前事务开始时，低版本事务已经完成
          */
-        if (tm.isCommitted(xMin) && xMin < xid && !t.isInSnapshot(xMin)){
+        if (e.isXminCommitted(tm,xMin) && xMin < xid && !t.isInSnapshot(xMin)){
             if (xMax == 0) return true;
             if (xMax != xid){
                 /*
@@ -75,7 +86,7 @@ public class Visibility {
                     xMax > xid：由高版本事务执行的
                     t.isInSnapshot(xMax)：在当前事务开始时，处在活跃状态的事务
                  */
-                if(!tm.isCommitted(xMax) || xMax > xid || t.isInSnapshot(xMax)) return true;
+                if(!e.isXmaxCommitted(tm,xMax) || xMax > xid || t.isInSnapshot(xMax)) return true;
             }
         }
 
@@ -1,133 +1,377 @@
 package com.whut.database.backend.common;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import com.whut.database.common.Error;
 
 
 
 /**
  * 使用引用计数器的缓存策略
+ *
+ * 每个key对应一个缓存项，缓存项中保存资源的加载结果和引用个数：
+ *  1. 第一个发现资源不在缓存中的线程负责加载，其他线程等待它的加载结果，而不是循环休眠
+ *  2. 引用个数使用原子变量维护，获取和释放不需要全局锁
+ *  3. 引用个数为 EVICTED 时表示资源正在被移出缓存，此时获取资源的线程等待移出完成后重新获取
+ *
+ * 没有替换策略时，引用个数减为0的资源立即移出缓存；
+ * 有替换策略时，没有引用的资源继续留在缓存中，缓存满时才由替换策略选出被淘汰的资源，
+ * 只有所有资源都被引用时，获取资源的线程才会等待，超时后抛出 CacheFullException；
+ * 子类可以通过 keepUnpinned 让某些资源在引用个数减为0时仍然立即移出缓存
+ *
+ * 引用个数为 OCCUPIED 时表示没有引用的资源正在被后台线程短暂占用（如拷贝脏页），获取资源的线程让出CPU后重试
  */
 public abstract class AbstractCache<T> {
 
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> isGetting;             // 该资源是否正在被获取
+    private static final int EVICTED = -1;              // 缓存项正在被移出缓存
+    private static final int OCCUPIED = -2;             // 缓存项正在被后台线程占用
+    private static final long FULL_WAIT_TIMEOUT = 1000; // 缓存被占满时的最长等待时间（毫秒）
+
+    private ConcurrentHashMap<Long, CacheItem<T>> cache; // 实际缓存的数据
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count;                        // 缓存中元素的个数（包括正在加载的元素）
+    private ReplacementPolicy policy;                   // 替换策略，为null时资源没有引用就移出缓存
+
+    private Lock waitLock;
+    private Condition unpinned;                         // 有资源的引用个数减为0
+    private AtomicInteger waiters;                      // 等待资源被释放的线程个数
 
 
+    /*
+        缓存项
+     */
+    private static class CacheItem<T> {
+        CompletableFuture<T> loaded = new CompletableFuture<>();        // 资源的加载结果
+        CompletableFuture<Void> evicted = new CompletableFuture<>();    // 资源是否已经移出缓存
+        AtomicInteger references = new AtomicInteger(1);                // 元素的引用个数
+
+        /*
+            引用个数+1，资源正在被移出缓存时返回false
+         */
+        boolean acquire(){
+            while (true){
+                int ref = references.get();
+                if (ref == EVICTED) return false;
+                if (ref == OCCUPIED){
+                    Thread.yield();
+                    continue;
+                }
+                if (references.compareAndSet(ref, ref + 1)) return true;
+            }
+        }
+    }
+
 
     public AbstractCache(int maxResource) {
+        this(maxResource, null);
+    }
+
+    public AbstractCache(int maxResource, ReplacementPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        isGetting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = policy;
+        cache = new ConcurrentHashMap<>();
+        count = new AtomicInteger(0);
+        waitLock = new ReentrantLock();
+        unpinned = waitLock.newCondition();
+        waiters = new AtomicInteger(0);
     }
 
     // 获取资源
     protected T get(long key) throws Exception{
-
-        // 死循环获取资源
         while (true){
-            lock.lock();
-
-            if(isGetting.containsKey(key)){
-                // 当前资源被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                }catch (InterruptedException e){
+            CacheItem<T> item = cache.get(key);
+            if (item == null){
+                // 资源不在缓存中，尝试成为加载该资源的线程
+                CacheItem<T> newItem = new CacheItem<>();
+                item = cache.putIfAbsent(key, newItem);
+                if (item == null){
+                    return load(key, newItem);
                 }
-                continue;
             }
 
-            if(cache.containsKey(key)){
-                // 资源在缓存中，直接返回
-                T source = cache.get(key);
-                references.put(key,references.get(key)+1);
-                lock.unlock();
+            if (item.acquire()){
+                // 资源在缓存中或正在被其他线程加载，等待加载结果
+                T source = await(item.loaded);
+                if (policy != null) policy.access(key);
                 return source;
             }
 
-            if (maxResource > 0 && count == maxResource){
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
+            // 资源正在被移出缓存，等待移出完成后重新获取
+            await(item.evicted);
+        }
+    }
 
-            // 资源不在缓存中
-            isGetting.put(key,true);
-            lock.unlock();
-            break;
+    /*
+        加载不在缓存中的资源，并通知等待该资源的线程
+     */
+    private T load(long key, CacheItem<T> item) throws Exception{
+        if (!reserve(true)){
+            abort(key, item, Error.CacheFullException);
+            throw Error.CacheFullException;
         }
 
-        // 获取资源
         T source = null;
         try {
             source = getForCache(key);
         }catch (Exception e){
             // 出现异常，回滚上面的操作
-            lock.lock();
-            isGetting.remove(key);
-            lock.unlock();
+            count.decrementAndGet();
+            abort(key, item, e);
             throw e;
         }
 
-        // 将资源放入缓存
-        lock.lock();
-        count++;
-        isGetting.remove(key);
-        cache.put(key,source);
-        references.put(key,1);
-        lock.unlock();
-
+        if (policy != null) policy.insert(key);
+        item.loaded.complete(source);
         return source;
     }
 
+    /*
+        预读：把不在缓存中的资源一次性加载进缓存，加载好的资源不持有引用
+        缓存满时只淘汰没有引用的资源，不等待，放不下的资源不再预读
+     */
+    protected void preload(List<Long> keys) throws Exception{
+        if (policy == null) return; // 没有替换策略时没有引用的资源会立即移出缓存
+
+        // 先占位，加载期间获取这些资源的线程等待加载结果
+        List<Long> loading = new ArrayList<>();
+        List<CacheItem<T>> items = new ArrayList<>();
+        for (Long key : keys) {
+            if (cache.containsKey(key)) continue;
+            if (!reserve(false)) break;
+            CacheItem<T> item = new CacheItem<>();
+            if (cache.putIfAbsent(key, item) != null){
+                count.decrementAndGet();
+                continue;
+            }
+            loading.add(key);
+            items.add(item);
+        }
+        if (loading.isEmpty()) return;
+
+        List<T> sources;
+        try {
+            sources = getForCache(loading);
+        }catch (Exception e){
+            for(int i = 0; i < loading.size(); i++){
+                count.decrementAndGet();
+                abort(loading.get(i), items.get(i), e);
+            }
+            throw e;
+        }
+
+        for(int i = 0; i < loading.size(); i++){
+            policy.insert(loading.get(i));
+            items.get(i).loaded.complete(sources.get(i));
+            release(loading.get(i));
+        }
+    }
+
+    /*
+        为新资源预留缓存位置：缓存满时通过替换策略淘汰没有引用的资源
+        所有资源都被引用时，wait为true则等待其他线程释放，超时返回false
+     */
+    private boolean reserve(boolean wait) throws Exception{
+        long deadline = System.currentTimeMillis() + FULL_WAIT_TIMEOUT;
+        while (true){
+            if (count.incrementAndGet() <= maxResource || maxResource <= 0) return true;
+            count.decrementAndGet();
+
+            if (policy == null) return false;
+            if (evict()) continue;
+            if (!wait) return false;
+
+            // 所有资源都被引用，等待其他线程释放
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            waitLock.lock();
+            waiters.incrementAndGet();
+            try {
+                // 限制单次等待时间，避免错过在进入等待之前发出的通知
+                unpinned.await(Math.min(remaining, 10), TimeUnit.MILLISECONDS);
+            }finally {
+                waiters.decrementAndGet();
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /*
+        由替换策略选出一个没有引用的资源，将其移出缓存
+     */
+    private boolean evict(){
+        long key = policy.victim(k -> {
+            CacheItem<T> item = cache.get(k);
+            return item != null && item.references.compareAndSet(0, EVICTED);
+        });
+        if (key == ReplacementPolicy.NONE) return false;
+
+        CacheItem<T> item = cache.get(key);
+        try {
+            releaseForCache(item.loaded.getNow(null));
+        }finally {
+            cache.remove(key, item);
+            count.decrementAndGet();
+            item.evicted.complete(null);
+        }
+        return true;
+    }
+
+    /*
+        加载失败：移除缓存项，等待该资源的线程抛出同样的异常
+     */
+    private void abort(long key, CacheItem<T> item, Exception e){
+        item.references.set(EVICTED);
+        cache.remove(key, item);
+        item.loaded.completeExceptionally(e);
+        item.evicted.complete(null);
+    }
+
+    /*
+        等待其他线程完成加载或移出操作
+     */
+    private static <V> V await(CompletableFuture<V> future) throws Exception{
+        boolean interrupted = false;
+        try {
+            while (true){
+                try {
+                    return future.get();
+                }catch (InterruptedException e){
+                    interrupted = true;
+                }catch (ExecutionException e){
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) throw (Exception) cause;
+                    throw (java.lang.Error) cause;
+                }
+            }
+        }finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
     /*
         释放一个缓存
      */
     protected void release(long key) {
-        lock.lock();
+        CacheItem<T> item = cache.get(key);
+        if (item == null) return;
+
+        int ref = item.references.decrementAndGet();
+        if (policy != null && (ref != 0 || keepUnpinned(item.loaded.getNow(null)))){
+            // 资源留在缓存中，唤醒等待缓存位置的线程
+            if (ref == 0) signalUnpinned();
+            return;
+        }
+
+        // 引用个数减为0，并且没有其他线程在这期间重新获取，则由当前线程将资源移出缓存
+        if (ref == 0 && item.references.compareAndSet(0, EVICTED)){
+            try {
+                if (policy != null) policy.remove(key);
+                releaseForCache(item.loaded.getNow(null));
+            }finally {
+                cache.remove(key, item);
+                count.decrementAndGet();
+                item.evicted.complete(null);
+            }
+            if (policy != null) signalUnpinned();
+        }
+    }
+
+    /*
+        唤醒等待缓存位置的线程
+     */
+    private void signalUnpinned(){
+        if (waiters.get() == 0) return;
+        waitLock.lock();
         try {
-            int ref = references.get(key);
-            if(--ref == 0) { // 如果缓存为0，释放缓存
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
-            } else { // 将计数器的值-1
-                references.put(key, ref);
+            unpinned.signalAll();
+        }finally {
+            waitLock.unlock();
+        }
+    }
+
+    /*
+        有替换策略时，引用个数减为0的资源是否继续留在缓存中，默认总是保留
+     */
+    protected boolean keepUnpinned(T source){
+        return true;
+    }
+
+    /*
+        遍历没有被引用的资源：通过 filter 的资源被暂时独占并交给 action，
+        独占期间其他线程获取该资源需要等待，所以 action 应当尽快完成
+        action 返回后调用者持有该资源的一个引用（资源不会被淘汰），使用完需要 release
+        action 返回 false 时停止遍历
+     */
+    protected void acquireUnpinned(Predicate<T> filter, Predicate<T> action){
+        for (CacheItem<T> item : cache.values()) {
+            // 正在加载的资源引用个数不为0
+            if (item.references.get() != 0) continue;
+            T source = item.loaded.getNow(null);
+            if (source == null || !filter.test(source)) continue;
+            if (!item.references.compareAndSet(0, OCCUPIED)) continue;
+
+            boolean goOn;
+            try {
+                goOn = action.test(source);
+            }finally {
+                item.references.set(1);
             }
-        } finally {
-            lock.unlock();
+            if (!goOn) return;
         }
     }
 
+    /*
+        遍历已经加载的资源，包括正在被引用的资源，不改变引用个数
+        遍历期间资源可能被移出缓存，调用者需要自己处理这种情况
+     */
+    protected void forEachLoaded(Consumer<T> action){
+        for (CacheItem<T> item : cache.values()) {
+            T source = item.loaded.getNow(null);
+            if (source != null) action.accept(source);
+        }
+    }
+
+    /*
+        独占资源：调用者持有该资源唯一的引用时，暂时禁止其他线程获取该资源，用于需要移动资源内部数据的操作
+        独占期间其他线程获取该资源需要等待，应当尽快调用 unoccupy 结束独占
+     */
+    protected boolean tryOccupy(long key){
+        CacheItem<T> item = cache.get(key);
+        return item != null && item.references.compareAndSet(1, OCCUPIED);
+    }
+
+    protected void unoccupy(long key){
+        CacheItem<T> item = cache.get(key);
+        if (item != null) item.references.compareAndSet(OCCUPIED, 1);
+    }
+
     /*
         缓存关闭，将缓存的数据全部写回
      */
     protected void close(){
-        lock.lock();
-        try{
-            for (Map.Entry<Long, T> entry : cache.entrySet()) {
-                T source = entry.getValue();
-                releaseForCache(source);
+        for (Map.Entry<Long, CacheItem<T>> entry : cache.entrySet()) {
+            CacheItem<T> item = entry.getValue();
+            if (item.loaded.isDone() && !item.loaded.isCompletedExceptionally()){
+                releaseForCache(item.loaded.getNow(null));
             }
-            cache.clear();
-            references.clear();
-            isGetting.clear();
-            count = 0;
-        }finally {
-            lock.unlock();
+            item.references.set(EVICTED);
+            item.evicted.complete(null);
+            if (policy != null) policy.remove(entry.getKey());
         }
+        cache.clear();
+        count.set(0);
     }
 
     /*
@@ -135,6 +379,17 @@ public abstract class AbstractCache<T> {
      */
     protected abstract T getForCache(long key) throws Exception;
 
+    /*
+        批量获取不在缓存中的数据，用于预读，默认逐个获取，子类可以合并成一次读取
+     */
+    protected List<T> getForCache(List<Long> keys) throws Exception{
+        List<T> sources = new ArrayList<>(keys.size());
+        for (Long key : keys) {
+            sources.add(getForCache(key));
+        }
+        return sources;
+    }
+
     /*
         当资源从缓存中移除的操作
      */
@@ -0,0 +1,89 @@
+package com.whut.database.backend.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongPredicate;
+
+/*
+    CLOCK 替换策略
+
+    每个资源占用环形数组中的一个槽位，并带有一个访问位：
+    命中时只设置访问位，不需要加锁；淘汰时指针沿环形数组扫描，
+    访问位为1的资源清零后跳过（第二次机会），访问位为0且能够淘汰的资源被选中
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static final long EMPTY = -1; // 空槽位
+
+    private long[] keys;                            // 槽位中的资源
+    private AtomicIntegerArray refBits;             // 槽位的访问位
+    private ConcurrentHashMap<Long, Integer> slots; // 资源所在的槽位
+    private int[] freeSlots;                        // 空闲槽位栈
+    private int freeTop;
+    private int hand;                               // 时钟指针
+
+    public ClockPolicy(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive!");
+        keys = new long[capacity];
+        refBits = new AtomicIntegerArray(capacity);
+        slots = new ConcurrentHashMap<>();
+        freeSlots = new int[capacity];
+        for(int i = 0; i < capacity; i++){
+            keys[i] = EMPTY;
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeTop = capacity;
+    }
+
+    @Override
+    public synchronized void insert(long key) {
+        if (slots.containsKey(key)) return;
+        if (freeTop == 0) throw new IllegalStateException("Clock is full!");
+
+        int slot = freeSlots[--freeTop];
+        keys[slot] = key;
+        refBits.set(slot, 1);
+        slots.put(key, slot);
+    }
+
+    @Override
+    public void access(long key) {
+        Integer slot = slots.get(key);
+        if (slot != null) refBits.lazySet(slot, 1);
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        Integer slot = slots.remove(key);
+        if (slot != null) free(slot);
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate tryEvict) {
+        // 最多扫描两圈：第一圈清除访问位，第二圈一定能遇到所有未被引用的资源
+        for(int i = 0; i < keys.length * 2; i++){
+            int slot = hand;
+            hand = (hand + 1) % keys.length;
+
+            long key = keys[slot];
+            if (key == EMPTY) continue;
+            if (refBits.get(slot) == 1){
+                refBits.set(slot, 0);
+                continue;
+            }
+            if (tryEvict.test(key)){
+                slots.remove(key);
+                free(slot);
+                return key;
+            }
+        }
+        return NONE;
+    }
+
+    private void free(int slot){
+        keys[slot] = EMPTY;
+        refBits.set(slot, 0);
+        freeSlots[freeTop++] = slot;
+    }
+
+}
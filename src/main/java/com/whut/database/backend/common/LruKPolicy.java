@@ -0,0 +1,128 @@
+package com.whut.database.backend.common;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongPredicate;
+
+/*
+    LRU-K 替换策略
+
+    记录每个资源最近K次的访问时间，淘汰倒数第K次访问最早的资源（后向K距离最大）
+    访问次数不足K次的资源后向K距离视为无穷大，优先淘汰，它们之间按最近一次访问时间淘汰
+    相比LRU，一次性的顺序扫描不会把反复访问的热点资源挤出缓存
+
+    和 CLOCK 一样每个资源占用一个槽位，槽位的访问历史是K个时间组成的环：
+    命中时只原子地写入一个时间，不需要加锁；淘汰时加锁扫描所有槽位，计算后向K距离
+    命中和淘汰、释放槽位并发时访问历史可能不精确，只影响淘汰的顺序
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    private static final long EMPTY = -1; // 空槽位
+
+    private int k;
+    private long[] keys;                            // 槽位中的资源
+    private AtomicLongArray times;                  // 槽位的访问时间，槽位 slot 占用 [slot*k, slot*k+k)，0表示没有
+    private AtomicLongArray counts;                 // 槽位的访问次数，下一次访问写入 counts % k
+    private ConcurrentHashMap<Long, Integer> slots; // 资源所在的槽位
+    private int[] freeSlots;                        // 空闲槽位栈
+    private int freeTop;
+    private BitSet rejected;                        // 淘汰时已经询问过、不能淘汰的槽位
+    private long start;                             // 创建时的时间，访问时间从1开始
+
+    public LruKPolicy(int capacity, int k) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive!");
+        if (k <= 0) throw new IllegalArgumentException("K must be positive!");
+        this.k = k;
+        keys = new long[capacity];
+        times = new AtomicLongArray(capacity * k);
+        counts = new AtomicLongArray(capacity);
+        slots = new ConcurrentHashMap<>();
+        freeSlots = new int[capacity];
+        for(int i = 0; i < capacity; i++){
+            keys[i] = EMPTY;
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeTop = capacity;
+        rejected = new BitSet(capacity);
+        start = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void insert(long key) {
+        if (slots.containsKey(key)) return;
+        if (freeTop == 0) throw new IllegalStateException("LRU-K is full!");
+
+        int slot = freeSlots[--freeTop];
+        keys[slot] = key;
+        for(int i = 1; i < k; i++){
+            times.set(slot * k + i, 0);
+        }
+        times.set(slot * k, now());
+        counts.set(slot, 1);
+        slots.put(key, slot);
+    }
+
+    /*
+        命中：在环中覆盖最早的一次访问时间
+     */
+    @Override
+    public void access(long key) {
+        Integer slot = slots.get(key);
+        if (slot == null) return;
+        int i = (int)(counts.getAndIncrement(slot) % k);
+        times.lazySet(slot * k + i, now());
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        Integer slot = slots.remove(key);
+        if (slot != null) free(slot);
+    }
+
+    /*
+        按（倒数第K次访问时间，最近一次访问时间）从小到大询问，不足K次的倒数第K次访问时间为0
+        通常第一个资源就可以淘汰，被拒绝时再扫描下一个
+     */
+    @Override
+    public synchronized long victim(LongPredicate tryEvict) {
+        rejected.clear();
+        while (true){
+            int best = -1;
+            long bestKth = 0, bestLast = 0;
+            for(int slot = 0; slot < keys.length; slot++){
+                if (keys[slot] == EMPTY || rejected.get(slot)) continue;
+                long kth = Long.MAX_VALUE, last = Long.MIN_VALUE;
+                for(int i = 0; i < k; i++){
+                    long t = times.get(slot * k + i);
+                    kth = Math.min(kth, t);
+                    last = Math.max(last, t);
+                }
+                if (best == -1 || kth < bestKth || (kth == bestKth && last < bestLast)){
+                    best = slot;
+                    bestKth = kth;
+                    bestLast = last;
+                }
+            }
+            if (best == -1) return NONE;
+
+            long key = keys[best];
+            if (tryEvict.test(key)){
+                slots.remove(key);
+                free(best);
+                return key;
+            }
+            rejected.set(best);
+        }
+    }
+
+    private long now(){
+        return System.nanoTime() - start + 1;
+    }
+
+    private void free(int slot){
+        keys[slot] = EMPTY;
+        freeSlots[freeTop++] = slot;
+    }
+
+}
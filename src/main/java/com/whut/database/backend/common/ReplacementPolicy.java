@@ -0,0 +1,47 @@
+package com.whut.database.backend.common;
+
+import com.whut.database.common.Error;
+
+import java.util.function.LongPredicate;
+
+/*
+    缓存替换策略：缓存满时选出被淘汰的资源
+
+    策略只负责维护资源的访问顺序，资源能否被淘汰（是否还有引用）由缓存判断：
+    victim 按策略的顺序依次询问 tryEvict，第一个返回 true 的资源即为被淘汰的资源
+ */
+public interface ReplacementPolicy {
+
+    long NONE = -1; // 没有可以淘汰的资源
+
+    String CLOCK = "clock";
+    String LRU = "lru"; // lru 为 LRU，lru2 等为 LRU-K
+
+    int MAX_K = 16; // LRU-K 的K的上限
+
+    void insert(long key); // 资源加载进缓存
+
+    void access(long key); // 资源被再次访问
+
+    void remove(long key); // 资源被移出缓存
+
+    long victim(LongPredicate tryEvict); // 选出被淘汰的资源，并将其从策略中移除
+
+    /*
+        根据名称创建替换策略：clock（默认）、lru、lru后面跟K（如lru2），名称不合法时抛出异常
+     */
+    static ReplacementPolicy newPolicy(String name, int capacity) throws Exception{
+        if (name == null || "".equals(name) || CLOCK.equalsIgnoreCase(name)){
+            return new ClockPolicy(capacity);
+        }
+        if (name.regionMatches(true, 0, LRU, 0, LRU.length())){
+            String k = name.substring(LRU.length());
+            if (k.isEmpty()) return new LruKPolicy(capacity, 1);
+            if (k.matches("[1-9][0-9]?") && Integer.parseInt(k) <= MAX_K){
+                return new LruKPolicy(capacity, Integer.parseInt(k));
+            }
+        }
+        throw Error.InvalidPolicyException;
+    }
+
+}
@@ -21,6 +21,7 @@ public class Executor {
             System.out.println("Abnormal Abort：" + xid);
             tbm.abort(xid);
         }
+        tbm.closeConnection();
     }
 
     /*
@@ -13,12 +13,14 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception UnsupportedVersionException = new RuntimeException("Unsupported database file version!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
 
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
@@ -44,4 +46,6 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidCacheModeException = new RuntimeException("Invalid cache mode!");
+    public static final Exception InvalidPolicyException = new RuntimeException("Invalid replacement policy!");
 }
@@ -0,0 +1,373 @@
+package com.whut.database.backend.DM;
+
+import com.whut.database.backend.DM.dataItem.DataItem;
+import com.whut.database.backend.DM.logger.Logger;
+import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.TM.TransactionManager;
+import com.whut.database.backend.VM.VersionManager;
+import com.whut.database.backend.VM.VersionManagerImpl;
+import com.whut.database.backend.common.SubArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+    崩溃恢复测试
+
+    在子进程中写入数据，不关闭任何模块直接 halt（没有落盘的日志和页都会丢失，和真实的崩溃一样），
+    子进程把每条记录崩溃后应该读到的内容写入 expect 文件，再在当前进程中打开数据库进行恢复并检查
+ */
+public class RecoverTest {
+
+    private static final long MEM = 16 * PageCache.PAGE_SIZE; // 很小的页缓存，崩溃前就有页被写回
+    private static final int ROWS = 200;
+    private static final int ROW_SIZE = 300;
+    private static final String EXPECT = ".expect";
+
+    private static final String BASIC = "basic";
+    private static final String CHECKPOINT = "checkpoint"; // 中间写入超过两个日志段，触发后台检查点
+    private static final int FILLER_ROWS = 10000;
+    private static final int FILLER_SIZE = 4000;
+    private static final String COMMIT_LOGGED = "commitLogged"; // 提交记录在日志中，xid文件不落盘
+    private static final String SLOTS = "slots"; // 数据管理模块中反复释放和重用槽
+    private static final long SLOTS_MEM = 256 * PageCache.PAGE_SIZE; // 页留在缓存中，被多次整理后才写回
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoverWithSingleThreadRedo() throws Exception {
+        String path = crash(BASIC);
+        Expected expected = Expected.read(path);
+        check(path, 1, expected);
+        // 恢复之后正常关闭，再次打开不需要恢复
+        check(path, 1, expected);
+    }
+
+    @Test
+    public void recoverWithParallelRedo() throws Exception {
+        String path = crash(BASIC);
+        Expected expected = Expected.read(path);
+        check(path, 4, expected);
+        check(path, 4, expected);
+    }
+
+    /*
+        后台检查点只写回之前变脏的页，其余的脏页在脏页表中；第一个日志段已经被删除，
+        恢复从检查点、脏页表和活跃事务中最早的位置开始，已经写回的页根据页的LSN跳过
+     */
+    @Test
+    public void recoverAfterBackgroundCheckpoint() throws Exception {
+        String path = crash(CHECKPOINT);
+        assertFalse(new File(path + Logger.LOG_SUFFIX).exists());
+        Expected expected = Expected.read(path);
+        check(path, 4, expected);
+        check(path, 1, expected);
+    }
+
+    /*
+        提交记录在日志中：崩溃时丢失xid文件中没有落盘的状态，恢复时根据提交和取消日志重建
+     */
+    @Test
+    public void recoverCommitLogged() throws Exception {
+        String path = crash(COMMIT_LOGGED);
+        Expected expected = Expected.read(path);
+        check(path, 4, expected);
+        check(path, 1, expected);
+    }
+
+    /*
+        恢复不做回滚：崩溃时活跃的事务在预分配时已经是取消状态，它删除的记录仍然可以被新事务删除，
+        新事务的xid在预分配的范围之后，不会重用崩溃前的xid
+     */
+    @Test
+    public void crashedTransactionsAreAborted() throws Exception {
+        String path = crash(BASIC);
+        Expected expected = Expected.read(path);
+        check(path, 1, expected);
+
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        long[] xids = expected.xids;
+        assertTrue(tm.isCommitted(xids[0]));
+        assertTrue(tm.isCommitted(xids[1]));
+        assertTrue(tm.isAborted(xids[2]));
+        assertTrue(tm.isAborted(xids[3]));
+
+        long xid = vm.begin(0);
+        assertTrue(xid > xids[3]);
+        for (Map.Entry<Long, byte[]> e : expected.rows.entrySet()) {
+            if (e.getValue() != null) assertTrue("uid " + e.getKey(), vm.delete(xid, e.getKey()));
+        }
+        vm.commit(xid);
+
+        xid = vm.begin(0);
+        for (long uid : expected.rows.keySet()) {
+            assertNull("uid " + uid, vm.read(xid, uid));
+        }
+        vm.commit(xid);
+        dm.close();
+        tm.close();
+    }
+
+    /*
+        同一个槽上有多次插入和释放，槽在页整理后被不同长度的数据重用；
+        已经写回的页根据页的LSN跳过之前的日志，否则旧的插入会写到之后重用这个槽的数据上
+     */
+    @Test
+    public void redoSkipsAppliedRecords() throws Exception {
+        String path = crash(SLOTS);
+        Expected expected = Expected.read(path);
+        checkItems(path, expected);
+        checkItems(path, expected);
+    }
+
+    /*
+        子进程：已经提交的事务插入和删除记录，一个事务崩溃时仍然活跃，一个事务已经取消
+        args：数据库路径，模式
+     */
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        String mode = args[1];
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, SLOTS.equals(mode) ? SLOTS_MEM : MEM, tm);
+        Expected expected = new Expected();
+        if (SLOTS.equals(mode)){
+            reuseSlots(dm, expected);
+            expected.write(path);
+            Runtime.getRuntime().halt(0);
+        }
+
+        if (COMMIT_LOGGED.equals(mode)) dm.setCommitLogged(true);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+
+        long committed = vm.begin(0);
+        // 预分配的状态已经落盘，之后的修改只写入xid文件，保存一份落盘的内容
+        Path xidFile = Paths.get(path + TransactionManager.XID_SUFFIX);
+        Path synced = Paths.get(path + ".synced");
+        Files.copy(xidFile, synced);
+        long[] rows = new long[ROWS];
+        for(int i = 0; i < ROWS; i++){
+            rows[i] = vm.insert(committed, row("a", i));
+            expected.rows.put(rows[i], row("a", i));
+        }
+        vm.commit(committed);
+
+        long deleter = vm.begin(0);
+        for(int i = 0; i < ROWS / 4; i++){
+            vm.delete(deleter, rows[i]);
+            expected.rows.put(rows[i], null);
+        }
+        for(int i = 0; i < ROWS; i++){
+            expected.rows.put(vm.insert(deleter, row("b", i)), row("b", i));
+        }
+        vm.commit(deleter);
+
+        if (CHECKPOINT.equals(mode)) fill(vm, path, expected);
+
+        long active = vm.begin(0);
+        for(int i = ROWS / 4; i < ROWS / 2; i++){
+            vm.delete(active, rows[i]);
+        }
+        for(int i = 0; i < ROWS; i++){
+            expected.rows.put(vm.insert(active, row("c", i)), null);
+        }
+
+        long aborted = vm.begin(0);
+        for(int i = 0; i < ROWS / 4; i++){
+            expected.rows.put(vm.insert(aborted, row("d", i)), null);
+        }
+        vm.abort(aborted);
+
+        // 没有提交的事务的日志也落盘，恢复时需要处理它们
+        dm.flushLog();
+        expected.xids = new long[]{committed, deleter, active, aborted};
+        expected.write(path);
+        // 像断电一样丢失xid文件中没有落盘的修改
+        if (COMMIT_LOGGED.equals(mode)) Files.copy(synced, xidFile, StandardCopyOption.REPLACE_EXISTING);
+        Runtime.getRuntime().halt(0);
+    }
+
+    /*
+        用很多小事务写入超过两个日志段的数据，等待后台检查点删除第一个日志段
+        每10条记录检查一条
+     */
+    private static void fill(VersionManager vm, String path, Expected expected) throws Exception {
+        for(int i = 0; i < FILLER_ROWS; i += 100){
+            long xid = vm.begin(0);
+            for(int j = i; j < i + 100; j++){
+                byte[] raw = row("f", j, FILLER_SIZE);
+                long uid = vm.insert(xid, raw);
+                if (j % 10 == 0) expected.rows.put(uid, raw);
+            }
+            vm.commit(xid);
+        }
+        File first = new File(path + Logger.LOG_SUFFIX);
+        for(int i = 0; i < 100 && first.exists(); i++){
+            Thread.sleep(100);
+        }
+    }
+
+    /*
+        每一轮插入一批长度随机的数据，再释放一半还在的数据
+     */
+    private static void reuseSlots(DataManager dm, Expected expected) throws Exception {
+        Random random = new Random(7);
+        List<Long> live = new ArrayList<>();
+        for(int round = 0; round < 30; round++){
+            for(int i = 0; i < ROWS * 2; i++){
+                byte[] raw = row("s" + round + "-", i, 16 + random.nextInt(64));
+                long uid = dm.insert(TransactionManager.SUPER_XID, raw);
+                expected.rows.put(uid, raw);
+                live.add(uid);
+            }
+            Collections.shuffle(live, random);
+            for(int i = live.size() / 2; i > 0; i--){
+                long uid = live.remove(live.size() - 1);
+                dm.free(uid);
+                expected.rows.put(uid, null);
+            }
+        }
+        dm.flushLog();
+        // 等待后台写回所有的页：没有做过检查点，恢复时从头重做的日志都已经在页中
+        Thread.sleep(500);
+    }
+
+    /*
+        在子进程中写入数据后崩溃，返回数据库的路径
+     */
+    private String crash(String mode) throws Exception {
+        String path = new File(folder.getRoot(), "db").getPath();
+        List<String> cmd = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                RecoverTest.class.getName(), path, mode));
+        Process process = new ProcessBuilder(cmd).inheritIO().start();
+        assertEquals(0, process.waitFor());
+        return path;
+    }
+
+    /*
+        打开数据库（需要时恢复），检查每条记录对新事务的可见性和内容，然后正常关闭
+     */
+    private void check(String path, int redoThreads, Expected expected) throws Exception {
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, PageCache.MODE_HEAP, redoThreads);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+
+        long xid = vm.begin(0);
+        for (Map.Entry<Long, byte[]> e : expected.rows.entrySet()) {
+            assertArrayEquals("uid " + e.getKey(), e.getValue(), vm.read(xid, e.getKey()));
+        }
+        vm.commit(xid);
+
+        dm.close();
+        tm.close();
+    }
+
+    /*
+        打开数据库（需要时恢复），直接在数据管理模块中检查每个uid的数据，然后正常关闭
+     */
+    private void checkItems(String path, Expected expected) throws Exception {
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, SLOTS_MEM, tm);
+
+        for (Map.Entry<Long, byte[]> e : expected.rows.entrySet()) {
+            DataItem di = dm.read(e.getKey());
+            if (e.getValue() == null){
+                assertNull("uid " + e.getKey(), di);
+                continue;
+            }
+            assertNotNull("uid " + e.getKey(), di);
+            SubArray data = di.data();
+            assertArrayEquals("uid " + e.getKey(), e.getValue(), Arrays.copyOfRange(data.raw, data.start, data.end));
+            di.release();
+        }
+
+        dm.close();
+        tm.close();
+    }
+
+    private static byte[] row(String prefix, int i){
+        return row(prefix, i, ROW_SIZE);
+    }
+
+    private static byte[] row(String prefix, int i, int size){
+        byte[] raw = new byte[size];
+        Arrays.fill(raw, (byte)'.');
+        byte[] key = (prefix + i).getBytes();
+        System.arraycopy(key, 0, raw, 0, key.length);
+        return raw;
+    }
+
+    /*
+        崩溃后应该看到的结果：uid -> 内容，不可见的记录为null
+     */
+    private static class Expected {
+        Map<Long, byte[]> rows = new LinkedHashMap<>();
+        long[] xids = new long[0]; // 已提交、已提交、活跃、已取消
+
+        void write(String path) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(path + EXPECT))) {
+                out.writeInt(xids.length);
+                for (long xid : xids) {
+                    out.writeLong(xid);
+                }
+                out.writeInt(rows.size());
+                for (Map.Entry<Long, byte[]> e : rows.entrySet()) {
+                    out.writeLong(e.getKey());
+                    out.writeInt(e.getValue() == null ? -1 : e.getValue().length);
+                    if (e.getValue() != null) out.write(e.getValue());
+                }
+            }
+        }
+
+        static Expected read(String path) throws IOException {
+            Expected expected = new Expected();
+            try (DataInputStream in = new DataInputStream(new FileInputStream(path + EXPECT))) {
+                expected.xids = new long[in.readInt()];
+                for(int i = 0; i < expected.xids.length; i++){
+                    expected.xids[i] = in.readLong();
+                }
+                int n = in.readInt();
+                for(int i = 0; i < n; i++){
+                    long uid = in.readLong();
+                    int length = in.readInt();
+                    byte[] raw = null;
+                    if (length >= 0){
+                        raw = new byte[length];
+                        in.readFully(raw);
+                    }
+                    expected.rows.put(uid, raw);
+                }
+            }
+            return expected;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.whut.database.backend.DM.logger;
+
+import com.whut.database.backend.utils.Parser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+    日志格式兼容性测试：旧的v1日志文件能打开、追加，第一次删除段时换成v2的段，两种段能按顺序读出
+ */
+public class LoggerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void openV1File() throws Exception {
+        String path = path();
+        List<byte[]> logs = logs("v1-", 10);
+        writeV1(path, logs, new byte[0]);
+
+        Logger lg = Logger.open(path);
+        assertLogs(lg, logs);
+        assertEquals(new File(path + Logger.LOG_SUFFIX).length(), lg.nextLsn());
+        lg.close();
+    }
+
+    @Test
+    public void appendToV1ThenRollToV2() throws Exception {
+        String path = path();
+        List<byte[]> logs = logs("v1-", 10);
+        writeV1(path, logs, new byte[0]);
+
+        // 追加到v1的文件中，需要更新文件校验和
+        Logger lg = Logger.open(path);
+        for (byte[] log : logs("v1-more-", 5)) {
+            lg.flush(lg.writeLog(log));
+            logs.add(log);
+        }
+        lg.close();
+        lg = Logger.open(path);
+        assertLogs(lg, logs);
+
+        // 删除段之前先新建v2的段，之后的日志都写入v2的段
+        lg.removeBefore(0);
+        assertEquals(2, LoggerImpl.listSegments(path).length);
+        long firstV2 = lg.nextLsn();
+        List<byte[]> v2 = logs("v2-", 10);
+        for (byte[] log : v2) {
+            lg.writeLog(log);
+        }
+        lg.flush(lg.nextLsn() - 1);
+        lg.close();
+
+        List<byte[]> all = new ArrayList<>(logs);
+        all.addAll(v2);
+        lg = Logger.open(path);
+        assertLogs(lg, all);
+        lg.rewind(firstV2);
+        assertRemaining(lg, v2);
+
+        // v1的段中只有 firstV2 之前的日志，可以被删除
+        lg.removeBefore(firstV2);
+        lg.close();
+        assertFalse(new File(path + Logger.LOG_SUFFIX).exists());
+        lg = Logger.open(path);
+        assertLogs(lg, v2);
+        lg.close();
+    }
+
+    @Test
+    public void removeV1BadTail() throws Exception {
+        String path = path();
+        List<byte[]> logs = logs("v1-", 10);
+        // 只写了一半的日志：长度字段说明后面还有100个字节
+        writeV1(path, logs, Parser.int2Byte(100));
+
+        Logger lg = Logger.open(path);
+        assertLogs(lg, logs);
+        byte[] log = "after-bad-tail".getBytes();
+        lg.flush(lg.writeLog(log));
+        lg.close();
+
+        logs.add(log);
+        lg = Logger.open(path);
+        assertLogs(lg, logs);
+        lg.close();
+    }
+
+    @Test
+    public void removeV2BadTail() throws Exception {
+        String path = path();
+        Logger lg = Logger.create(path);
+        List<byte[]> logs = logs("v2-", 10);
+        for (byte[] log : logs) {
+            lg.writeLog(log);
+        }
+        long end = lg.nextLsn();
+        lg.close();
+
+        // 追加一条校验和错误的日志
+        try (FileOutputStream out = new FileOutputStream(path + Logger.LOG_SUFFIX, true)) {
+            ByteBuffer bad = ByteBuffer.allocate(16 + 4);
+            bad.putInt(4).putInt(0).putLong(end).putInt(7);
+            out.write(bad.array());
+        }
+
+        lg = Logger.open(path);
+        assertLogs(lg, logs);
+        assertEquals(end, lg.nextLsn());
+        byte[] log = "after-bad-tail".getBytes();
+        lg.flush(lg.writeLog(log));
+        lg.close();
+
+        logs.add(log);
+        lg = Logger.open(path);
+        assertLogs(lg, logs);
+        lg.close();
+    }
+
+    /*
+        多个线程同时写满一个段：等待落盘期间其他线程已经新建了段时不再新建，除了最后一个段，每个段都接近写满
+     */
+    @Test
+    public void concurrentAppendsRollOnce() throws Exception {
+        String path = path();
+        Logger lg = Logger.create(path);
+        int size = (int)(LoggerImpl.SEGMENT_SIZE / 16);
+        int threads = 8;
+        int perThread = 8;
+
+        List<Thread> writers = new ArrayList<>();
+        for(int t = 0; t < threads; t++){
+            int id = t;
+            Thread writer = new Thread(() -> {
+                for(int i = 0; i < perThread; i++){
+                    byte[] log = new byte[size];
+                    Arrays.fill(log, (byte)(id * perThread + i));
+                    lg.flush(lg.writeLog(log));
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        lg.close();
+
+        File[] segments = LoggerImpl.listSegments(path);
+        Arrays.sort(segments); // 段文件名中的起始位置是定长的十六进制数
+        assertTrue(segments.length > 1);
+        for(int i = 0; i < segments.length - 1; i++){
+            assertTrue(segments[i].getName(), segments[i].length() > LoggerImpl.SEGMENT_SIZE - 2L * size);
+        }
+
+        // 每条日志都能按顺序读出
+        Logger reader = Logger.open(path);
+        reader.rewind();
+        Set<Byte> seen = new HashSet<>();
+        byte[] log;
+        while ((log = reader.next()) != null){
+            assertEquals(size, log.length);
+            assertTrue(seen.add(log[0]));
+        }
+        assertEquals(threads * perThread, seen.size());
+        reader.close();
+    }
+
+    private String path() {
+        return new File(folder.getRoot(), "db").getPath();
+    }
+
+    private static List<byte[]> logs(String prefix, int n){
+        List<byte[]> logs = new ArrayList<>();
+        for(int i = 0; i < n; i++){
+            logs.add((prefix + i).getBytes());
+        }
+        return logs;
+    }
+
+    /*
+        从头读取日志，和 expected 完全相同
+     */
+    private static void assertLogs(Logger lg, List<byte[]> expected){
+        lg.rewind();
+        assertRemaining(lg, expected);
+    }
+
+    private static void assertRemaining(Logger lg, List<byte[]> expected){
+        for (byte[] log : expected) {
+            assertArrayEquals(log, lg.next());
+        }
+        assertNull(lg.next());
+    }
+
+    /*
+        按v1的格式写日志文件：[XChecksum][Log1]...[LogN][BadTail]，日志为[Size][Checksum][Data]
+     */
+    private static void writeV1(String path, List<byte[]> logs, byte[] badTail) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(1 << 16);
+        int xCheckSum = 0;
+        for (byte[] data : logs) {
+            ByteBuffer log = ByteBuffer.allocate(8 + data.length);
+            log.putInt(data.length);
+            log.putInt(LoggerImpl.calCheckSum(0, data, 0, data.length));
+            log.put(data);
+            xCheckSum = LoggerImpl.calCheckSum(xCheckSum, log.array(), 0, log.capacity());
+            body.put(log.array());
+        }
+        body.put(badTail);
+        body.flip();
+
+        try (RandomAccessFile raf = new RandomAccessFile(path + Logger.LOG_SUFFIX, "rw")) {
+            raf.write(Parser.int2Byte(xCheckSum));
+            raf.write(body.array(), 0, body.limit());
+        }
+    }
+}
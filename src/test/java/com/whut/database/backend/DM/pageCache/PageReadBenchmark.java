@@ -0,0 +1,80 @@
+package com.whut.database.backend.DM.pageCache;
+
+import com.whut.database.backend.DM.page.Page;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    随机读页的吞吐量测试
+
+    先创建一个有 pages 页的数据库文件，再用很小的页缓存随机读页，几乎每次读取都会缓存未命中，
+    依次使用 1、2、4 ... maxThreads 个线程，输出每秒读取的页数，用来观察吞吐量是否随线程数增长
+    文件比内存小时数据都在操作系统的页缓存中，测的是系统调用的并行度；要测磁盘需要文件远大于内存
+
+    用法：PageReadBenchmark [path] [pages] [maxThreads] [seconds]
+ */
+public class PageReadBenchmark {
+
+    private static final long CACHE_MEMORY = 64 * PageCache.PAGE_SIZE; // 只缓存64页
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir") + File.separator + "page_read_bench";
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 16;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        new File(path + PageCache.DB_SUFFIX).delete();
+        PageCache pc = PageCache.create(path, CACHE_MEMORY);
+        byte[] init = new byte[PageCache.PAGE_SIZE];
+        for(int i = 0; i < pages; i++){
+            pc.newPage(init);
+        }
+        pc.close();
+
+        System.out.printf("pages=%d, cache=%d pages%n", pages, CACHE_MEMORY / PageCache.PAGE_SIZE);
+        for(int threads = 1; threads <= maxThreads; threads *= 2){
+            pc = PageCache.open(path, CACHE_MEMORY);
+            long ops = run(pc, pages, threads, seconds * 1000L);
+            pc.close();
+            System.out.printf("threads=%-3d %,12d pages/s%n", threads, ops / seconds);
+        }
+        new File(path + PageCache.DB_SUFFIX).delete();
+    }
+
+    /*
+        threads 个线程随机读页 millis 毫秒，返回读取的总页数
+     */
+    private static long run(PageCache pc, int pages, int threads, long millis) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+
+        for(int i = 0; i < threads; i++){
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]){
+                        Page pg = pc.getPage(random.nextInt(pages) + 1);
+                        pg.release();
+                        ops.increment();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        deadline[0] = System.currentTimeMillis() + millis;
+        start.countDown();
+        done.await();
+        return ops.sum();
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.whut.database.backend.IM;
+
+import com.whut.database.backend.DM.DataManager;
+import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.TM.TransactionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+    B+树索引测试：内部节点分裂、相同的key跨越叶子节点、在兄弟叶子中删除、遍历期间叶子分裂
+ */
+public class BPlusTreeTest {
+
+    private static final long MEM = 256 * PageCache.PAGE_SIZE;
+    private static final int LEAF_KEYS = Node.BALANCE_NUMBER * 2; // 叶子节点满时的key个数
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private BPlusTree tree;
+
+    @Before
+    public void open() throws Exception {
+        String path = new File(folder.getRoot(), "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        tree = BPlusTree.load(BPlusTree.create(dm), dm);
+    }
+
+    @After
+    public void close() {
+        tree.close();
+        dm.close();
+        tm.close();
+    }
+
+    /*
+        叶子节点的个数超过一个内部节点能容纳的子节点个数，根节点的子节点也分裂过，之后每个key都能找到
+     */
+    @Test
+    public void internalNodesSplit() throws Exception {
+        int n = LEAF_KEYS * LEAF_KEYS * 2;
+        List<Long> keys = new ArrayList<>();
+        for(long key = 0; key < n; key++){
+            keys.add(key);
+        }
+        Collections.shuffle(keys, new Random(1));
+        for (long key : keys) {
+            tree.insert(key, uid(key));
+        }
+
+        assertTrue(leaves() > LEAF_KEYS + 1);
+        for(long key = 0; key < n; key++){
+            assertEquals("key " + key, Collections.singletonList(uid(key)), tree.search(key));
+        }
+        assertTrue(tree.search(n).isEmpty());
+        assertTrue(tree.search(-1).isEmpty());
+
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(n, all.size());
+        for(int i = 0; i < n; i++){
+            assertEquals(uid(i), (long) all.get(i));
+        }
+    }
+
+    /*
+        相同的key超过一个叶子节点，分裂后分布在多个叶子中，search 从key-1所在的叶子开始查找，全部返回
+     */
+    @Test
+    public void duplicatesSpanLeafSplit() throws Exception {
+        long key = 1000;
+        Set<Long> uids = new HashSet<>();
+        for(int i = 0; i < LEAF_KEYS * 3; i++){
+            // 两边的key也在分裂，相同的key不会都在最左边的叶子中
+            tree.insert(key - 1 - i, uid(key - 1 - i));
+            tree.insert(key, i);
+            tree.insert(key + 1 + i, uid(key + 1 + i));
+            uids.add((long) i);
+        }
+
+        assertEquals(uids, new HashSet<>(tree.search(key)));
+        assertEquals(uids.size(), tree.search(key).size());
+        assertEquals(Collections.singletonList(uid(key - 1)), tree.search(key - 1));
+        assertEquals(Collections.singletonList(uid(key + 1)), tree.search(key + 1));
+        assertEquals(uids.size() + 2, tree.searchRange(key - 1, key + 1).size());
+    }
+
+    /*
+        要删除的 (key, uid) 不在 key 所在的第一个叶子中，沿着兄弟节点找到它
+     */
+    @Test
+    public void deleteInSiblingLeaf() throws Exception {
+        long key = 7;
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < LEAF_KEYS * 3; i++){
+            tree.insert(key, i);
+            uids.add((long) i);
+        }
+
+        // 最后一个叶子中的uid，它前面至少还有一个包含该key的叶子
+        BPlusTree.Cursor cursor = tree.cursor();
+        List<List<Long>> leaves = new ArrayList<>();
+        List<Long> batch;
+        while ((batch = cursor.next()) != null){
+            leaves.add(batch);
+        }
+        assertTrue(leaves.size() > 1);
+        long last = leaves.get(leaves.size() - 1).get(0);
+        assertFalse(leaves.get(0).contains(last));
+
+        assertTrue(tree.delete(key, last));
+        assertFalse(tree.delete(key, last));
+        uids.remove(last);
+        assertEquals(new HashSet<>(uids), new HashSet<>(tree.search(key)));
+
+        // 其余的uid按相反的顺序删除，每个都能找到
+        Collections.reverse(uids);
+        for (long uid : uids) {
+            assertTrue("uid " + uid, tree.delete(key, uid));
+        }
+        assertTrue(tree.search(key).isEmpty());
+        assertFalse(tree.delete(key, 0));
+    }
+
+    /*
+        每读一个叶子就插入一批新的key，当前叶子和之后的叶子都在分裂，遍历开始前已有的uid恰好各返回一次
+     */
+    @Test
+    public void cursorWalkWhileLeavesSplit() throws Exception {
+        int n = LEAF_KEYS * 8;
+        for(long key = 0; key < n; key++){
+            tree.insert(key * 4, uid(key * 4));
+        }
+
+        Random random = new Random(2);
+        long inserted = 0;
+        Set<Long> seen = new HashSet<>();
+        BPlusTree.Cursor cursor = tree.cursor();
+        List<Long> batch;
+        while ((batch = cursor.next()) != null){
+            for (long uid : batch) {
+                assertTrue("uid returned twice " + uid, seen.add(uid));
+            }
+            for(int i = 0; i < LEAF_KEYS; i++){
+                // 新插入的key可能重复，uid不重复
+                long key = random.nextInt(n) * 4L + 1 + random.nextInt(3);
+                tree.insert(key, -(++inserted));
+            }
+        }
+
+        for(long key = 0; key < n; key++){
+            assertTrue("key " + key * 4, seen.contains(uid(key * 4)));
+        }
+        assertNotEquals(n, tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    private int leaves() throws Exception {
+        int leaves = 0;
+        BPlusTree.Cursor cursor = tree.cursor();
+        while (cursor.next() != null){
+            leaves++;
+        }
+        return leaves;
+    }
+
+    private static long uid(long key){
+        return (key << 8) | 0x55;
+    }
+}
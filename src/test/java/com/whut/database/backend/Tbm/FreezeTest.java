@@ -0,0 +1,237 @@
+package com.whut.database.backend.Tbm;
+
+import com.whut.database.backend.DM.DataManager;
+import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.TM.TransactionManager;
+import com.whut.database.backend.VM.VersionManager;
+import com.whut.database.backend.VM.VersionManagerImpl;
+import com.whut.database.backend.parser.statement.Create;
+import com.whut.database.backend.parser.statement.Delete;
+import com.whut.database.backend.parser.statement.Insert;
+import com.whut.database.backend.parser.statement.Select;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+    冻结测试：冻结并截断事务状态之后，取消的插入仍然不可见，取消的删除仍然可见
+    旧格式的xid文件打开时转换为新的文件头；在提交冻结事务和截断事务状态之间崩溃，恢复后可见性不变
+ */
+public class FreezeTest {
+
+    private static final long MEM = 64 * PageCache.PAGE_SIZE;
+    private static final int ROWS = 20;
+
+    // xid文件头：[Magic] [XidCount] [FrozenXid] [FirstXid]，旧格式只有 [XidCount]
+    private static final int OF_COUNT = 8;
+    private static final int OF_FROZEN = 16;
+    private static final int OF_FIRST = 24;
+    private static final int HEADER_LENGTH = 32;
+    private static final int OLD_HEADER_LENGTH = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManager vm;
+    private TableManager tbm;
+
+    @Test
+    public void abortedChangesStayUndoneAfterTruncate() throws Exception {
+        String path = path();
+        create(path);
+        fill();
+
+        tbm.freeze();
+        assertTrue(header(path, OF_FROZEN) > 1);
+        assertEquals(expected(), read());
+        assertEquals(ROWS, abortedDeleteAll());
+        close();
+
+        open(path);
+        assertEquals(expected(), read());
+        assertEquals(ROWS, abortedDeleteAll());
+        close();
+    }
+
+    /*
+        旧格式的xid文件：8字节的事务个数，之后是从事务1开始的状态
+     */
+    @Test
+    public void oldXidFileIsMigrated() throws Exception {
+        String path = path();
+        create(path);
+        fill();
+        close();
+
+        Path xidFile = Paths.get(path + TransactionManager.XID_SUFFIX);
+        byte[] raw = Files.readAllBytes(xidFile);
+        long count = ByteBuffer.wrap(raw).getLong(OF_COUNT);
+        ByteBuffer old = ByteBuffer.allocate(OLD_HEADER_LENGTH + raw.length - HEADER_LENGTH);
+        old.putLong(count).put(raw, HEADER_LENGTH, raw.length - HEADER_LENGTH);
+        Files.write(xidFile, old.array());
+
+        open(path);
+        assertEquals(-1, header(path, 0));
+        assertEquals(count, header(path, OF_COUNT));
+        assertEquals(1, header(path, OF_FROZEN));
+        assertEquals(1, header(path, OF_FIRST));
+        assertEquals(expected(), read());
+
+        tbm.freeze();
+        close();
+        open(path);
+        assertEquals(expected(), read());
+        close();
+    }
+
+    /*
+        冻结事务已经提交，FrozenXid 还没有写入文件头时崩溃：恢复后仍然按照事务状态判断可见性，再次冻结结果相同
+     */
+    @Test
+    public void crashBetweenCommitAndTruncate() throws Exception {
+        String path = path();
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                FreezeTest.class.getName(), path).inheritIO().start();
+        assertEquals(0, process.waitFor());
+        assertEquals(1, header(path, OF_FROZEN));
+
+        open(path);
+        assertEquals(expected(), read());
+        tbm.freeze();
+        assertTrue(header(path, OF_FROZEN) > 1);
+        assertEquals(expected(), read());
+        close();
+
+        open(path);
+        assertEquals(expected(), read());
+        assertEquals(ROWS, abortedDeleteAll());
+        close();
+    }
+
+    /*
+        子进程：冻结之后把文件头中的 FrozenXid 改回冻结之前的值，相当于截断没有落盘，然后直接 halt
+     */
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        FreezeTest test = new FreezeTest();
+        test.create(path);
+        test.fill();
+
+        long frozen = header(path, OF_FROZEN);
+        test.tbm.freeze();
+        try (RandomAccessFile raf = new RandomAccessFile(path + TransactionManager.XID_SUFFIX, "rw")) {
+            raf.seek(OF_FROZEN);
+            raf.writeLong(frozen);
+            raf.getFD().sync();
+        }
+        Runtime.getRuntime().halt(0);
+    }
+
+    private String path() {
+        return new File(folder.getRoot(), "db").getPath();
+    }
+
+    private void create(String path) throws Exception {
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+        tbm = TableManager.create(path, vm, dm);
+
+        Create create = new Create();
+        create.tableName = "t";
+        create.filedName = new String[]{"id", "name"};
+        create.fieldType = new String[]{"string", "string"};
+        create.index = new String[]{"id"};
+        long xid = vm.begin(0);
+        tbm.create(xid, create);
+        tbm.commit(xid);
+    }
+
+    private void open(String path) {
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+    }
+
+    private void close() {
+        dm.close();
+        tm.close();
+    }
+
+    /*
+        提交的插入、取消的删除（删除了所有提交的记录）和取消的插入
+        冻结之前不读取取消插入的记录，也不检查取消的删除：读取时设置的提示位会掩盖冻结没有改写的记录
+     */
+    private void fill() throws Exception {
+        insert("keep", true);
+        assertEquals(ROWS, abortedDeleteAll());
+        insert("aborted", false);
+    }
+
+    private void insert(String name, boolean commit) throws Exception {
+        long xid = vm.begin(0);
+        for(int i = 0; i < ROWS; i++){
+            Insert insert = new Insert();
+            insert.tableName = "t";
+            insert.values = new String[]{name + i, name};
+            tbm.insert(xid, insert);
+        }
+        if (commit) tbm.commit(xid);
+        else tbm.abort(xid);
+    }
+
+    /*
+        在一个取消的事务中删除所有可见的记录，返回删除的条数
+     */
+    private int abortedDeleteAll() throws Exception {
+        Delete delete = new Delete();
+        delete.tableName = "t";
+        long xid = vm.begin(0);
+        String res = new String(tbm.delete(xid, delete));
+        tbm.abort(xid);
+        return Integer.parseInt(res.substring("delete ".length()));
+    }
+
+    private Set<String> read() throws Exception {
+        Select select = new Select();
+        select.tableName = "t";
+        select.fields = new String[]{"*"};
+        long xid = vm.begin(0);
+        String res = new String(tbm.read(xid, select));
+        tbm.commit(xid);
+        return new HashSet<>(Arrays.asList(res.split("\n")));
+    }
+
+    private static Set<String> expected() {
+        Set<String> rows = new HashSet<>();
+        for(int i = 0; i < ROWS; i++){
+            rows.add("[keep" + i + ",keep]");
+        }
+        return rows;
+    }
+
+    private static long header(String path, int offset) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(path + TransactionManager.XID_SUFFIX, "r")) {
+            raf.seek(offset);
+            return raf.readLong();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.whut.database.backend.Tbm;
+
+import com.whut.database.backend.DM.DataManager;
+import com.whut.database.backend.DM.pageCache.PageCache;
+import com.whut.database.backend.TM.TransactionManager;
+import com.whut.database.backend.VM.VersionManager;
+import com.whut.database.backend.VM.VersionManagerImpl;
+import com.whut.database.backend.parser.statement.Create;
+import com.whut.database.backend.parser.statement.Insert;
+import com.whut.database.backend.parser.statement.Select;
+import com.whut.database.backend.parser.statement.Update;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+    回收测试：不可见的版本从所有索引中删除，空间被重新使用；正在执行的语句持有的uid在 horizon 越过之前不会被重用
+    直接使用 Table，不经过表管理器的表缓存，后台回收线程不会回收这里的表
+ */
+public class VacuumTest {
+
+    private static final long MEM = 256 * PageCache.PAGE_SIZE;
+    private static final int ROWS = 100;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path;
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManager vm;
+    private TableManager tbm;
+    private Table table;
+
+    @Before
+    public void open() throws Exception {
+        path = new File(folder.getRoot(), "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+        tbm = TableManager.create(path, vm, dm);
+    }
+
+    @After
+    public void close() {
+        dm.close();
+        tm.close();
+    }
+
+    /*
+        创建表 t(id, name) 并插入 ROWS 条记录，index 为索引列
+     */
+    private void createTable(String... index) throws Exception {
+        Create create = new Create();
+        create.tableName = "t";
+        create.filedName = new String[]{"id", "name"};
+        create.fieldType = new String[]{"string", "string"};
+        create.index = index;
+        long xid = vm.begin(0);
+        table = Table.createTable(tbm, 0, xid, create);
+        vm.commit(xid);
+
+        xid = vm.begin(0);
+        for(int i = 0; i < ROWS; i++){
+            Insert insert = new Insert();
+            insert.tableName = "t";
+            insert.values = new String[]{"k" + i, "v0"};
+            table.insert(xid, insert);
+        }
+        vm.commit(xid);
+    }
+
+    /*
+        每次更新留下一个旧版本，两个索引中都有它；快照还能看到的版本不回收，快照结束后再回收
+     */
+    @Test
+    public void deadVersionsLeaveEveryIndex() throws Exception {
+        createTable("id", "name");
+        for(int r = 1; r <= ROUNDS; r++){
+            update("v" + r);
+        }
+        long snapshot = vm.begin(1);
+        update("v" + (ROUNDS + 1));
+        for (Field field : table.fields) {
+            assertEquals(field.fieldName, ROWS * (ROUNDS + 2), entries(field));
+        }
+
+        assertEquals(ROWS * ROUNDS, table.vacuum(vm.horizon()));
+        assertEquals(rows("v" + ROUNDS), read(snapshot));
+        for (Field field : table.fields) {
+            assertEquals(field.fieldName, ROWS * 2, entries(field));
+        }
+        vm.commit(snapshot);
+
+        assertEquals(ROWS, table.vacuum(vm.horizon()));
+        for (Field field : table.fields) {
+            assertEquals(field.fieldName, ROWS, entries(field));
+        }
+        Field name = table.fields.get(1);
+        for(int r = 0; r <= ROUNDS; r++){
+            assertTrue("v" + r, search(name, "v" + r).isEmpty());
+        }
+        assertEquals(ROWS, search(name, "v" + (ROUNDS + 1)).size());
+
+        long xid = vm.begin(0);
+        assertEquals(rows("v" + (ROUNDS + 1)), read(xid));
+        vm.commit(xid);
+        assertEquals(0, table.vacuum(vm.horizon()));
+    }
+
+    /*
+        回收之后更新使用回收的空间，数据库文件不再增长
+        只在id上建索引：索引的叶子节点不合并，name的每个新值都会让name上的索引增长
+     */
+    @Test
+    public void vacuumedSpaceIsReused() throws Exception {
+        createTable("id");
+        // 前两轮之后旧版本和新版本占用的空间都已经分配
+        for(int r = 1; r <= 2; r++){
+            update("v" + r);
+            assertEquals(ROWS, table.vacuum(vm.horizon()));
+        }
+        long length = new File(path + ".db").length();
+
+        for(int r = 3; r < 3 + ROUNDS * 3; r++){
+            update("v" + r);
+            assertEquals(ROWS, table.vacuum(vm.horizon()));
+        }
+        assertEquals(length, new File(path + ".db").length());
+    }
+
+    /*
+        回收时还在进行的事务可能持有回收的uid，它结束之前新插入的记录不会使用这些uid；
+        它结束之后，这些槽可以被重用
+     */
+    @Test
+    public void freedUidsWaitForHorizon() throws Exception {
+        createTable("id");
+        Field id = table.fields.get(0);
+        Set<Long> old = new HashSet<>(id.search(Long.MIN_VALUE, Long.MAX_VALUE));
+        update("v1");
+
+        // 回收前开启的事务，之前读到的uid在它结束之前不能指向其他记录
+        long reader = vm.begin(0);
+        assertEquals(ROWS, table.vacuum(vm.horizon()));
+        update("v2");
+        Set<Long> live = new HashSet<>(id.search(Long.MIN_VALUE, Long.MAX_VALUE));
+        for (long uid : old) {
+            assertFalse("uid " + uid + " reused", live.contains(uid));
+            assertNull(vm.read(reader, uid));
+        }
+        vm.commit(reader);
+
+        assertEquals(ROWS, table.vacuum(vm.horizon()));
+        update("v3");
+        live = new HashSet<>(id.search(Long.MIN_VALUE, Long.MAX_VALUE));
+        live.retainAll(old);
+        assertFalse(live.isEmpty());
+    }
+
+    private void update(String name) throws Exception {
+        Update update = new Update();
+        update.tableName = "t";
+        update.fieldName = "name";
+        update.value = name;
+        long xid = vm.begin(0);
+        assertEquals(ROWS, table.update(xid, update));
+        vm.commit(xid);
+    }
+
+    private Set<String> read(long xid) throws Exception {
+        Select select = new Select();
+        select.tableName = "t";
+        select.fields = new String[]{"*"};
+        return new HashSet<>(Arrays.asList(table.read(xid, select).split("\n")));
+    }
+
+    private static Set<String> rows(String name){
+        Set<String> rows = new HashSet<>();
+        for(int i = 0; i < ROWS; i++){
+            rows.add("[k" + i + "," + name + "]");
+        }
+        return rows;
+    }
+
+    private static int entries(Field field) throws Exception {
+        return field.search(Long.MIN_VALUE, Long.MAX_VALUE).size();
+    }
+
+    private static List<Long> search(Field field, String value) throws Exception {
+        long key = field.value2Uid(value);
+        return field.search(key, key);
+    }
+}
@@ -0,0 +1,142 @@
+package com.whut.database.backend.VM;
+
+import com.whut.database.common.Error;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+    记录锁表测试：死锁检测、释放时按FIFO顺序交给等待的事务、等待超时
+ */
+public class LockTableTest {
+
+    private static final long A = 1;
+    private static final long B = 2;
+
+    @Test(timeout = 10000)
+    public void deadlockIsDetected() throws Exception {
+        LockTable lt = new LockTable();
+        lt.acquire(1, A);
+        lt.acquire(2, B);
+        lt.acquire(2, B); // 已经持有
+
+        // 事务1等待事务2持有的B
+        Locker t1 = new Locker(lt, 1, B);
+        t1.awaitWaiting();
+
+        // 事务2再等待事务1持有的A就形成了环，事务2得到死锁异常，没有进入等待队列
+        try {
+            lt.acquire(2, A);
+            fail("deadlock not detected");
+        }catch (Exception e){
+            assertSame(Error.DeadlockException, e);
+        }
+
+        // 事务2放弃后B交给事务1
+        lt.remove(2);
+        assertEquals(Long.valueOf(1), t1.granted.poll(5, TimeUnit.SECONDS));
+        t1.join();
+        assertNull(t1.error);
+
+        // A只被事务1持有，事务1结束后可以被其他事务获取
+        lt.remove(1);
+        lt.acquire(3, A);
+    }
+
+    @Test(timeout = 10000)
+    public void handOffInFifoOrder() throws Exception {
+        LockTable lt = new LockTable();
+        lt.acquire(1, A);
+
+        BlockingQueue<Long> granted = new LinkedBlockingQueue<>();
+        Locker[] waiters = new Locker[3];
+        for(int i = 0; i < waiters.length; i++){
+            waiters[i] = new Locker(lt, i + 2, A, granted);
+            waiters[i].awaitWaiting();
+        }
+
+        // 每次释放只把锁交给队首的事务
+        for(long xid = 1; xid <= 3; xid++){
+            lt.remove(xid);
+            assertEquals(Long.valueOf(xid + 1), granted.poll(5, TimeUnit.SECONDS));
+            assertNull(granted.poll(50, TimeUnit.MILLISECONDS));
+        }
+        for (Locker waiter : waiters) {
+            waiter.join();
+            assertNull(waiter.error);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void waitTimesOut() throws Exception {
+        LockTable lt = new LockTable(TimeUnit.MILLISECONDS.toNanos(200));
+        lt.acquire(1, A);
+
+        long start = System.nanoTime();
+        try {
+            lt.acquire(2, A);
+            fail("wait did not time out");
+        }catch (Exception e){
+            assertSame(Error.LockTimeoutException, e);
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+        // 超时的事务已经离开等待队列，释放时锁不会交给它
+        lt.remove(1);
+        lt.acquire(3, A);
+        lt.remove(2);
+        lt.remove(3);
+    }
+
+    /*
+        在另一个线程中获取锁，获取到后把xid放入 granted
+     */
+    private static class Locker extends Thread {
+        final BlockingQueue<Long> granted;
+        private final LockTable lt;
+        private final long xid;
+        private final long uid;
+        volatile Exception error;
+
+        Locker(LockTable lt, long xid, long uid) {
+            this(lt, xid, uid, new LinkedBlockingQueue<>());
+        }
+
+        Locker(LockTable lt, long xid, long uid, BlockingQueue<Long> granted) {
+            this.lt = lt;
+            this.xid = xid;
+            this.uid = uid;
+            this.granted = granted;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                lt.acquire(xid, uid);
+                granted.add(xid);
+            }catch (Exception e){
+                error = e;
+            }
+        }
+
+        /*
+            等待线程在锁上阻塞
+         */
+        void awaitWaiting() throws InterruptedException {
+            while (getState() != State.TIMED_WAITING){
+                assertNull(granted.peek());
+                Thread.sleep(1);
+            }
+        }
+    }
+}